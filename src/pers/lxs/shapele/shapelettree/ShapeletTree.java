@@ -0,0 +1,353 @@
+package pers.lxs.shapele.shapelettree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import pers.lxs.shapelet.DistanceKernel;
+import pers.lxs.shapelet.OrderLine;
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.TimeSeriesDataset;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Decision tree whose nodes test the distance from a series to a shapelet against the split
+ * threshold of that shapelet: a series closer than the threshold goes left, any other goes right.
+ * The shapelet of a node is the candidate with the best information gain on the series that reach
+ * the node, as computed by Shapelet.calcInfoGainAndThreshold for the class counts of the node.
+ *
+ * The distances from every candidate to every training series are computed once, by the shapelet
+ * transform, and kept column by column. A node only holds the indices of its series, so the
+ * distances are partitioned down the tree by index and never recomputed. The best split of a large
+ * node is searched for over blocks of candidates in parallel, and the two subtrees of a node are
+ * built in parallel, on a fork/join pool.
+ *
+ * A series is classified on one path from the root to a leaf, and at each node the distance to the
+ * shapelet is only taken as far as it decides the test: DistanceKernel.matchesWithin stops at the
+ * first window closer than the threshold and abandons every other window as soon as it is further.
+ * A trained tree is not modified by classification and can be shared by any number of threads.
+ */
+public class ShapeletTree {
+
+    private static final int CANDIDATE_BLOCK = 64; // candidates per task of the best split search
+    private static final int PARALLEL_NODE_SIZE = 32; // smaller nodes are built on the calling task
+
+    private int maxDepth = Integer.MAX_VALUE;
+    private int minSplitSize = 2; // nodes with fewer series are leaves
+    private int numThreads = 1;
+    private Node root;
+    private int numNodes;
+
+    /**
+     *
+     * @param maxDepth the depth below which no node is split (the root has depth 0)
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(0, maxDepth);
+    }
+
+    /**
+     *
+     * @param minSplitSize the number of training series a node needs to be split
+     */
+    public void setMinSplitSize(int minSplitSize) {
+        this.minSplitSize = Math.max(2, minSplitSize);
+    }
+
+    /**
+     *
+     * @param numThreads the number of threads the distances and the tree are computed on (1 = serial)
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     *
+     * @param candidates the shapelets the nodes may test, e.g. as found by a ShapeletFilter. The
+     * distances of candidates found on the same series are reused, not computed again
+     * @param data the training series, with their class set
+     */
+    public void train(List<Shapelet> candidates, Instances data) {
+        train(candidates, new TimeSeriesDataset(data));
+    }
+
+    /**
+     *
+     * @param candidates the shapelets the nodes may test
+     * @param dataset the training series
+     */
+    public void train(List<Shapelet> candidates, TimeSeriesDataset dataset) {
+        if (candidates.isEmpty() || dataset.numSeries() == 0) {
+            throw new IllegalArgumentException("A shapelet tree needs at least one candidate and one series");
+        }
+        double[][] features = ShapeletUtils.transform(candidates, dataset, true, this.numThreads);
+        // one column per candidate, read in full at every node it is evaluated at
+        double[][] columns = new double[candidates.size()][dataset.numSeries()];
+        for (int i = 0; i < features.length; i++) {
+            for (int j = 0; j < columns.length; j++) {
+                columns[j][i] = features[i][j];
+            }
+        }
+        int[] classIndices = new int[dataset.numSeries()];
+        int[] all = new int[dataset.numSeries()];
+        for (int i = 0; i < all.length; i++) {
+            classIndices[i] = dataset.getClassIndex(i);
+            all[i] = i;
+        }
+
+        Training training = new Training(candidates, columns, classIndices, dataset);
+        ForkJoinPool pool = new ForkJoinPool(this.numThreads);
+        try {
+            this.root = pool.invoke(new BuildNode(training, all, 0));
+        }
+        finally {
+            pool.shutdown();
+        }
+        this.numNodes = countNodes(this.root);
+    }
+
+    /**
+     *
+     * @param series the values of a series, without its class value
+     * @return the class value predicted for the series
+     */
+    public double classify(double[] series) {
+        if (this.root == null) {
+            throw new IllegalStateException("ShapeletTree not trained - call train before classify");
+        }
+        Node node = this.root;
+        while (node.shapelet != null) {
+            boolean closer = DistanceKernel.matchesWithin(node.shapelet.content, series, 0, series.length,
+                    node.threshold, node.order);
+            node = closer ? node.left : node.right;
+        }
+        return node.classValue;
+    }
+
+    /**
+     *
+     * @param instance a series in the format of the training data
+     * @return the class value predicted for the series
+     */
+    public double classifyInstance(Instance instance) {
+        return classify(TimeSeriesDataset.seriesValues(instance));
+    }
+
+    public int numNodes() {
+        return this.numNodes;
+    }
+
+    /**
+     *
+     * @return the shapelets tested by the nodes, root first, in depth first order
+     */
+    public ArrayList<Shapelet> getShapelets() {
+        ArrayList<Shapelet> shapelets = new ArrayList<Shapelet>();
+        collectShapelets(this.root, shapelets);
+        return shapelets;
+    }
+
+    private static void collectShapelets(Node node, List<Shapelet> shapelets) {
+        if (node != null && node.shapelet != null) {
+            shapelets.add(node.shapelet);
+            collectShapelets(node.left, shapelets);
+            collectShapelets(node.right, shapelets);
+        }
+    }
+
+    private static int countNodes(Node node) {
+        if (node == null) {
+            return 0;
+        }
+        return 1 + countNodes(node.left) + countNodes(node.right);
+    }
+
+    // a leaf if shapelet is null
+    private static class Node {
+        private Shapelet shapelet;
+        private double threshold;
+        private int[] order; // the shapelet's values by descending magnitude, for early abandon
+        private Node left;
+        private Node right;
+        private double classValue;
+    }
+
+    // what every task of one training run reads, never modified
+    private static class Training {
+        private final List<Shapelet> candidates;
+        private final double[][] columns;
+        private final int[] classIndices;
+        private final TimeSeriesDataset dataset;
+
+        private Training(List<Shapelet> candidates, double[][] columns, int[] classIndices,
+                         TimeSeriesDataset dataset) {
+            this.candidates = candidates;
+            this.columns = columns;
+            this.classIndices = classIndices;
+            this.dataset = dataset;
+        }
+    }
+
+    private class BuildNode extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final Training training;
+        private final int[] series; // indices of the training series that reach the node
+        private final int depth;
+
+        private BuildNode(Training training, int[] series, int depth) {
+            this.training = training;
+            this.series = series;
+            this.depth = depth;
+        }
+
+        protected Node compute() {
+            Node node = new Node();
+            int[] classCounts = new int[this.training.dataset.numClasses()];
+            for (int i = 0; i < this.series.length; i++) {
+                classCounts[this.training.classIndices[this.series[i]]]++;
+            }
+            int majority = 0;
+            int numPresent = 0;
+            for (int c = 0; c < classCounts.length; c++) {
+                if (classCounts[c] > classCounts[majority]) {
+                    majority = c;
+                }
+                if (classCounts[c] > 0) {
+                    numPresent++;
+                }
+            }
+            node.classValue = this.training.dataset.classValueOf(majority);
+            if (numPresent < 2 || this.series.length < ShapeletTree.this.minSplitSize
+                    || this.depth >= ShapeletTree.this.maxDepth) {
+                return node;
+            }
+
+            Split best = this.series.length >= PARALLEL_NODE_SIZE
+                    ? new FindSplit(this.training, this.series, classCounts, 0,
+                            this.training.candidates.size()).compute()
+                    : FindSplit.search(this.training, this.series, classCounts, 0,
+                            this.training.candidates.size());
+            if (best == null || best.scored.informationGain <= 0) {
+                return node;
+            }
+
+            // partition the series of the node by the distances computed once for the whole tree
+            double[] column = this.training.columns[best.candidate];
+            int numLeft = 0;
+            for (int i = 0; i < this.series.length; i++) {
+                if (column[this.series[i]] < best.scored.getSplitThreshold()) {
+                    numLeft++;
+                }
+            }
+            if (numLeft == 0 || numLeft == this.series.length) {
+                return node;
+            }
+            int[] leftSeries = new int[numLeft];
+            int[] rightSeries = new int[this.series.length - numLeft];
+            for (int i = 0, l = 0, r = 0; i < this.series.length; i++) {
+                if (column[this.series[i]] < best.scored.getSplitThreshold()) {
+                    leftSeries[l++] = this.series[i];
+                }
+                else {
+                    rightSeries[r++] = this.series[i];
+                }
+            }
+
+            node.shapelet = this.training.candidates.get(best.candidate);
+            node.threshold = best.scored.getSplitThreshold();
+            node.order = DistanceKernel.sortByMagnitude(node.shapelet.content);
+            BuildNode left = new BuildNode(this.training, leftSeries, this.depth + 1);
+            BuildNode right = new BuildNode(this.training, rightSeries, this.depth + 1);
+            if (this.series.length >= PARALLEL_NODE_SIZE) {
+                left.fork();
+                node.right = right.compute();
+                node.left = left.join();
+            }
+            else {
+                node.left = left.compute();
+                node.right = right.compute();
+            }
+            return node;
+        }
+    }
+
+    // the best split of a node among a range of candidates
+    private static class Split {
+        private final int candidate;
+        private final Shapelet scored; // gain, threshold and gap of the candidate on the node's series
+
+        private Split(int candidate, Shapelet scored) {
+            this.candidate = candidate;
+            this.scored = scored;
+        }
+
+        // ranked as the shapelets, ties go to the earlier candidate so the tree does not depend on threads
+        private static Split better(Split a, Split b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            int order = a.scored.compareTo(b.scored);
+            if (order != 0) {
+                return order < 0 ? a : b;
+            }
+            return a.candidate <= b.candidate ? a : b;
+        }
+    }
+
+    private static class FindSplit extends RecursiveTask<Split> {
+        private static final long serialVersionUID = 1L;
+
+        private final Training training;
+        private final int[] series;
+        private final int[] classCounts;
+        private final int from;
+        private final int to;
+
+        private FindSplit(Training training, int[] series, int[] classCounts, int from, int to) {
+            this.training = training;
+            this.series = series;
+            this.classCounts = classCounts;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected Split compute() {
+            if (this.to - this.from <= CANDIDATE_BLOCK) {
+                return search(this.training, this.series, this.classCounts, this.from, this.to);
+            }
+            int middle = (this.from + this.to) >>> 1;
+            FindSplit lower = new FindSplit(this.training, this.series, this.classCounts, this.from, middle);
+            FindSplit upper = new FindSplit(this.training, this.series, this.classCounts, middle, this.to);
+            lower.fork();
+            Split upperBest = upper.compute();
+            return Split.better(lower.join(), upperBest);
+        }
+
+        private static Split search(Training training, int[] series, int[] classCounts, int from, int to) {
+            OrderLine orderline = new OrderLine(series.length);
+            Split best = null;
+            for (int j = from; j < to; j++) {
+                double[] column = training.columns[j];
+                orderline.clear();
+                for (int i = 0; i < series.length; i++) {
+                    orderline.add(column[series[i]], training.classIndices[series[i]]);
+                }
+                orderline.sort();
+                Shapelet candidate = training.candidates.get(j);
+                Shapelet scored = new Shapelet(candidate.content, candidate.seriesId, candidate.startPos);
+                scored.informationGain = -1;
+                scored.calcInfoGainAndThreshold(orderline, classCounts);
+                best = Split.better(best, new Split(j, scored));
+            }
+            return best;
+        }
+    }
+}
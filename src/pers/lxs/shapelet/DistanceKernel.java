@@ -0,0 +1,199 @@
+package pers.lxs.shapelet;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sliding window subsequence distance between a z-normalised candidate and a time series.
+ *
+ * The window statistics are maintained as running sums and sums of squares while the window slides
+ * over the series, and every window is z-normalised on the fly, so no subsequence is copied and
+ * nothing is allocated per window.
+ */
+public class DistanceKernel {
+
+    /**
+     * Calculate the distance from a candidate to its best matching subsequence of a series. Only
+     * the values series[from] ... series[to - 1] are visited.
+     *
+     * @param candidate the z-normalised candidate
+     * @param series the series to slide the candidate over
+     * @param from index of the first value of the series
+     * @param to index after the last value of the series
+     * @return the length normalised euclidean distance to the best matching window
+     */
+    public static double subsequenceDistance(double[] candidate, double[] series, int from, int to) {
+        return Math.sqrt((1.0 / candidate.length * bestSum(candidate, series, from, to, false, null, null, -1,
+                Double.MAX_VALUE)));
+    }
+
+    /**
+     * As subsequenceDistance, with the window statistics looked up in a precomputed cache instead of
+     * being maintained while the window slides.
+     *
+     * @param candidate the z-normalised candidate
+     * @param series the series to slide the candidate over
+     * @param from index of the first value of the series
+     * @param to index after the last value of the series
+     * @param statistics the statistics cache that holds the series
+     * @param seriesIndex the index of the series in the statistics cache
+     * @return the length normalised euclidean distance to the best matching window
+     */
+    public static double subsequenceDistance(double[] candidate, double[] series, int from, int to,
+                                             SeriesStatistics statistics, int seriesIndex) {
+        return Math.sqrt((1.0 / candidate.length * bestSum(candidate, series, from, to, false, null, statistics,
+                seriesIndex, Double.MAX_VALUE)));
+    }
+
+    /**
+     * As subsequenceDistance, but the squared error of a window stops accumulating as soon as it can
+     * no longer beat the best window found so far. The result is the same distance.
+     *
+     * @param candidate the z-normalised candidate
+     * @param series the series to slide the candidate over
+     * @param from index of the first value of the series
+     * @param to index after the last value of the series
+     * @param order the order in which the candidate values are compared (see sortByMagnitude), null
+     * to compare them from first to last
+     * @return the length normalised euclidean distance to the best matching window
+     */
+    public static double earlyAbandonDistance(double[] candidate, double[] series, int from, int to,
+                                              int[] order) {
+        return Math.sqrt((1.0 / candidate.length * bestSum(candidate, series, from, to, true, order, null, -1,
+                Double.MAX_VALUE)));
+    }
+
+    /**
+     * As earlyAbandonDistance, with the window statistics looked up in a precomputed cache.
+     *
+     * @param candidate the z-normalised candidate
+     * @param series the series to slide the candidate over
+     * @param from index of the first value of the series
+     * @param to index after the last value of the series
+     * @param order the order in which the candidate values are compared, null for first to last
+     * @param statistics the statistics cache that holds the series
+     * @param seriesIndex the index of the series in the statistics cache
+     * @return the length normalised euclidean distance to the best matching window
+     */
+    public static double earlyAbandonDistance(double[] candidate, double[] series, int from, int to,
+                                              int[] order, SeriesStatistics statistics, int seriesIndex) {
+        return Math.sqrt((1.0 / candidate.length * bestSum(candidate, series, from, to, true, order, statistics,
+                seriesIndex, Double.MAX_VALUE)));
+    }
+
+    /**
+     * Whether a candidate has a window of a series closer than a given distance. Every window is
+     * abandoned as soon as its squared error reaches that distance and the search stops at the first
+     * closer window, so a series with no such window costs little more than one pass over it.
+     *
+     * @param candidate the z-normalised candidate
+     * @param series the series to slide the candidate over
+     * @param from index of the first value of the series
+     * @param to index after the last value of the series
+     * @param maxDistance the length normalised distance a window has to be closer than
+     * @param order the order in which the candidate values are compared (see sortByMagnitude), null
+     * to compare them from first to last
+     * @return true if subsequenceDistance would be less than maxDistance
+     */
+    public static boolean matchesWithin(double[] candidate, double[] series, int from, int to,
+                                        double maxDistance, int[] order) {
+        double bound = maxDistance * maxDistance * candidate.length;
+        return bestSum(candidate, series, from, to, true, order, null, -1, bound) < bound;
+    }
+
+    // the least squared error of a window, or bound if no window is below it. With a bound the
+    // search stops at the first window below it
+    private static double bestSum(double[] candidate, double[] series, int from, int to,
+                                  boolean earlyAbandon, int[] order, SeriesStatistics statistics,
+                                  int seriesIndex, double bound) {
+        int length = candidate.length;
+        double bestSum = bound;
+        double sum;
+
+        if (to - from < length) {
+            return bestSum;
+        }
+
+        // statistics of the first window, when they are not cached
+        double windowSum = 0;
+        double windowSumSq = 0;
+        if (statistics == null) {
+            for (int j = from; j < from + length; j++) {
+                windowSum += series[j];
+                windowSumSq += series[j] * series[j];
+            }
+        }
+
+        for (int i = from; i <= to - length; i++) {
+            double mean;
+            double stdv;
+            if (statistics != null) {
+                mean = statistics.mean(seriesIndex, i, length);
+                stdv = statistics.stdv(seriesIndex, i, length);
+            }
+            else {
+                if (i > from) { // slide the window on by one value
+                    double out = series[i - 1];
+                    double in = series[i + length - 1];
+                    windowSum += in - out;
+                    windowSumSq += in * in - out * out;
+                }
+                mean = windowSum / length;
+                double variance = windowSumSq / length - mean * mean;
+                stdv = variance > 0 ? Math.sqrt(variance) : 0;
+            }
+            if (stdv == 0) { // a flat window cannot be z-normalised, as in zNorm it never matches
+                continue;
+            }
+
+            // once the sum reaches the best so far the window cannot be the best match
+            double abandonAt = earlyAbandon ? bestSum : Double.POSITIVE_INFINITY;
+            sum = 0;
+            if (order == null) {
+                for (int j = 0; j < length && sum < abandonAt; j++) {
+                    double diff = candidate[j] - (series[i + j] - mean) / stdv;
+                    sum += diff * diff;
+                }
+            }
+            else {
+                for (int j = 0; j < length && sum < abandonAt; j++) {
+                    int k = order[j];
+                    double diff = candidate[k] - (series[i + k] - mean) / stdv;
+                    sum += diff * diff;
+                }
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                if (bound < Double.MAX_VALUE) {
+                    break;
+                }
+            }
+        }
+        return bestSum;
+    }
+
+    /**
+     * The values of a z-normalised candidate that are furthest from the mean contribute most to the
+     * distance, so comparing them first lets earlyAbandonDistance abandon a window sooner.
+     *
+     * @param candidate the z-normalised candidate
+     * @return the indices of the candidate in descending order of absolute value
+     */
+    public static int[] sortByMagnitude(final double[] candidate) {
+        Integer[] indices = new Integer[candidate.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            public int compare(Integer o1, Integer o2) {
+                return Double.compare(Math.abs(candidate[o2]), Math.abs(candidate[o1]));
+            }
+        });
+
+        int[] order = new int[indices.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = indices[i];
+        }
+        return order;
+    }
+}
@@ -0,0 +1,181 @@
+package pers.lxs.shapelet;
+
+/**
+ * Distance profiles of candidates against the series of a data set in O(n log n) per series, as in
+ * the MASS algorithm: the sliding dot products of the candidate with every window of a series come
+ * from one FFT convolution, and the window means and standard deviations from the prefix sum
+ * statistics of the data set.
+ *
+ * As in SlidingDotProducts, the convolutions are taken of the values less the mean of their series
+ * and of the candidate less its mean, which keeps the products small: the rounding error of an FFT
+ * grows with the magnitude of its values, not with that of the differences that are wanted. A
+ * distance taken from a correlation still loses its small values to cancellation (a window that
+ * matches the candidate comes out near 1e-7 instead of 0), so the distance of the best window is
+ * computed again directly, in O(m).
+ *
+ * The transforms of the series are computed once when the profile is built and shared read-only by
+ * all threads. A Query holds the transform of one candidate and its own work space, so a query must
+ * only be used by one thread at a time.
+ */
+public class DistanceProfile {
+
+    private final TimeSeriesDataset dataset;
+    private final SeriesStatistics statistics;
+    private final int fftLength;
+    private final double[][] seriesRe;
+    private final double[][] seriesIm;
+    private final double[] seriesMeans;
+
+    /**
+     *
+     * @param dataset the series the candidates are compared to
+     */
+    public DistanceProfile(TimeSeriesDataset dataset) {
+        this.dataset = dataset;
+        this.statistics = dataset.getStatistics();
+        // the circular convolution of a series with a candidate only wraps around into its first
+        // (candidate length - 1) values, which are not dot products of windows and never read
+        this.fftLength = FFT.nextPowerOfTwo(dataset.seriesLength());
+        this.seriesRe = new double[dataset.numSeries()][];
+        this.seriesIm = new double[dataset.numSeries()][];
+        this.seriesMeans = new double[dataset.numSeries()];
+
+        double[] values = dataset.getValues();
+        int seriesLength = dataset.seriesLength();
+        for (int s = 0; s < dataset.numSeries(); s++) {
+            int offset = dataset.offset(s);
+            double total = 0;
+            for (int i = 0; i < seriesLength; i++) {
+                total += values[offset + i];
+            }
+            this.seriesMeans[s] = seriesLength > 0 ? total / seriesLength : 0;
+            double[] re = new double[this.fftLength];
+            double[] im = new double[this.fftLength];
+            for (int i = 0; i < seriesLength; i++) {
+                re[i] = values[offset + i] - this.seriesMeans[s];
+            }
+            FFT.transform(re, im, false);
+            this.seriesRe[s] = re;
+            this.seriesIm[s] = im;
+        }
+    }
+
+    /**
+     *
+     * @param candidate the z-normalised candidate
+     * @return a query for the distance profiles of the candidate
+     */
+    public Query query(double[] candidate) {
+        return new Query(candidate);
+    }
+
+    public class Query {
+
+        private final double[] candidate;
+        private final int length;
+        private final double shiftedSum; // of the candidate less its mean, 0 up to rounding
+        private final double candidateSumSq;
+        private final double[] candidateRe;
+        private final double[] candidateIm;
+        private final double[] workRe;
+        private final double[] workIm;
+
+        private Query(double[] candidate) {
+            this.candidate = candidate;
+            this.length = candidate.length;
+            this.candidateRe = new double[fftLength];
+            this.candidateIm = new double[fftLength];
+            this.workRe = new double[fftLength];
+            this.workIm = new double[fftLength];
+
+            double total = 0;
+            double sumSq = 0;
+            for (int j = 0; j < this.length; j++) {
+                total += candidate[j];
+                sumSq += candidate[j] * candidate[j];
+            }
+            double mean = total / this.length;
+            double sum = 0;
+            for (int j = 0; j < this.length; j++) {
+                double value = candidate[j] - mean;
+                sum += value;
+                this.candidateRe[this.length - 1 - j] = value; // reversed, for the convolution
+            }
+            this.shiftedSum = sum;
+            this.candidateSumSq = sumSq;
+            FFT.transform(this.candidateRe, this.candidateIm, false);
+        }
+
+        /**
+         *
+         * @param series index of a series of the data set
+         * @return the distance from the candidate to its best matching window of the series, as
+         * DistanceKernel.subsequenceDistance would give it
+         */
+        public double subsequenceDistance(int series) {
+            int numWindows = slidingDotProducts(series);
+            double bestSum = Double.MAX_VALUE;
+            int best = -1;
+            for (int t = 0; t < numWindows; t++) {
+                double sum = squaredDistance(series, t);
+                if (sum < bestSum) {
+                    bestSum = sum;
+                    best = t;
+                }
+            }
+            if (best < 0) {
+                return Math.sqrt((1.0 / this.length * bestSum));
+            }
+            int start = dataset.offset(series) + best;
+            return DistanceKernel.subsequenceDistance(this.candidate, dataset.getValues(), start,
+                    start + this.length, statistics, series);
+        }
+
+        /**
+         *
+         * @param series index of a series of the data set
+         * @return the length normalised distance from the candidate to every window of the series,
+         * NaN for flat windows
+         */
+        public double[] profile(int series) {
+            int numWindows = slidingDotProducts(series);
+            double[] profile = new double[Math.max(0, numWindows)];
+            for (int t = 0; t < numWindows; t++) {
+                double sum = squaredDistance(series, t);
+                profile[t] = sum == Double.MAX_VALUE ? Double.NaN : Math.sqrt(sum / this.length);
+            }
+            return profile;
+        }
+
+        // leaves the dot product of the candidate with window t in workRe[t + length - 1]
+        private int slidingDotProducts(int series) {
+            double[] re = seriesRe[series];
+            double[] im = seriesIm[series];
+            for (int i = 0; i < fftLength; i++) {
+                this.workRe[i] = re[i] * this.candidateRe[i] - im[i] * this.candidateIm[i];
+                this.workIm[i] = re[i] * this.candidateIm[i] + im[i] * this.candidateRe[i];
+            }
+            FFT.transform(this.workRe, this.workIm, true);
+            return dataset.seriesLength() - this.length + 1;
+        }
+
+        // squared distance to the z-normalised window t, MAX_VALUE if the window is flat
+        private double squaredDistance(int series, int t) {
+            // a flat candidate z-normalises to NaN, as in DistanceKernel it matches no window
+            if (Double.isNaN(this.candidateSumSq)) {
+                return Double.MAX_VALUE;
+            }
+            int start = dataset.offset(series) + t;
+            double stdv = statistics.stdv(series, start, this.length);
+            if (stdv == 0) {
+                return Double.MAX_VALUE;
+            }
+            // the candidate mean drops out: it multiplies the window less its mean, which sums to 0
+            double mean = statistics.mean(series, start, this.length) - seriesMeans[series];
+            double dotProduct = this.workRe[t + this.length - 1];
+            double sum = this.candidateSumSq + this.length
+                    - 2 * (dotProduct - mean * this.shiftedSum) / stdv;
+            return sum > 0 ? sum : 0;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package pers.lxs.shapelet;
+
+/**
+ * In-place iterative radix-2 fast Fourier transform of complex data held as separate real and
+ * imaginary arrays.
+ */
+public class FFT {
+
+    /**
+     *
+     * @param n a positive number
+     * @return the smallest power of two that is not below n
+     */
+    public static int nextPowerOfTwo(int n) {
+        int size = 1;
+        while (size < n) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Transform the data in place. The inverse transform is scaled by 1/n, so that transforming and
+     * inverse transforming gives back the input.
+     *
+     * @param re the real parts, the length must be a power of two
+     * @param im the imaginary parts, of the same length
+     * @param inverse true for the inverse transform
+     */
+    public static void transform(double[] re, double[] im, boolean inverse) {
+        int n = re.length;
+        if (n != im.length || Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("FFT length must be a power of two, got " + n);
+        }
+
+        // bit reversal permutation
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double temp = re[i];
+                re[i] = re[j];
+                re[j] = temp;
+                temp = im[i];
+                im[i] = im[j];
+                im[j] = temp;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            double angle = 2 * Math.PI / length * (inverse ? 1 : -1);
+            double stepRe = Math.cos(angle);
+            double stepIm = Math.sin(angle);
+            int half = length >> 1;
+            for (int i = 0; i < n; i += length) {
+                double wRe = 1;
+                double wIm = 0;
+                for (int j = 0; j < half; j++) {
+                    int a = i + j;
+                    int b = a + half;
+                    double uRe = re[a];
+                    double uIm = im[a];
+                    double vRe = re[b] * wRe - im[b] * wIm;
+                    double vIm = re[b] * wIm + im[b] * wRe;
+                    re[a] = uRe + vRe;
+                    im[a] = uIm + vIm;
+                    re[b] = uRe - vRe;
+                    im[b] = uIm - vIm;
+                    double nextRe = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = nextRe;
+                }
+            }
+        }
+
+        if (inverse) {
+            for (int i = 0; i < n; i++) {
+                re[i] /= n;
+                im[i] /= n;
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package pers.lxs.shapelet;
+
+/**
+ * An orderline held in parallel primitive arrays: the distance of each instance to the shapelet
+ * being assessed and the dense class index of that instance.
+ *
+ * An orderline is meant to be reused for every candidate a worker evaluates, so that no objects are
+ * allocated per candidate. Sorting is stable, entries at the same distance keep the order in which
+ * they were added, as with Collections.sort on a list of OrderLineObj.
+ */
+public final class OrderLine {
+    // runs up to this length are insertion sorted
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private double[] distances;
+    private int[] classIndices;
+    private int size;
+
+    // buffers for the merge sort, kept between sorts
+    private int[] order;
+    private int[] orderBuffer;
+    private double[] distanceBuffer;
+    private int[] classBuffer;
+
+    /**
+     *
+     * @param capacity the number of entries the orderline can hold before it has to grow
+     */
+    public OrderLine(int capacity) {
+        capacity = Math.max(1, capacity);
+        this.distances = new double[capacity];
+        this.classIndices = new int[capacity];
+        this.order = new int[capacity];
+        this.orderBuffer = new int[capacity];
+        this.distanceBuffer = new double[capacity];
+        this.classBuffer = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Remove all entries, keeping the allocated arrays.
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     *
+     * @param distance distance from the instance to the shapelet that is being assessed
+     * @param classIndex the dense class index of the instance
+     */
+    public void add(double distance, int classIndex) {
+        if (this.size == this.distances.length) {
+            grow(this.size * 2);
+        }
+        this.distances[this.size] = distance;
+        this.classIndices[this.size] = classIndex;
+        this.size++;
+    }
+
+    /**
+     * Add the entries [from, to) of another orderline to this sorted orderline, keeping it sorted.
+     * Only the new entries are sorted, they are then merged with the existing ones. The result is
+     * the same as adding them and calling sort(): on a tie the existing entry comes first.
+     *
+     * @param other the orderline to take the entries from
+     * @param from the first entry to add
+     * @param to one past the last entry to add
+     */
+    public void insertSorted(OrderLine other, int from, int to) {
+        int oldSize = this.size;
+        int newSize = oldSize + to - from;
+        if (newSize > this.distances.length) {
+            grow(Math.max(newSize, this.distances.length * 2));
+        }
+        System.arraycopy(other.distances, from, this.distances, oldSize, to - from);
+        System.arraycopy(other.classIndices, from, this.classIndices, oldSize, to - from);
+        this.size = newSize;
+
+        for (int i = oldSize; i < newSize; i++) {
+            this.order[i] = i;
+        }
+        mergeSort(oldSize, newSize);
+
+        int left = 0;
+        int right = oldSize;
+        for (int i = 0; i < newSize; i++) {
+            int index;
+            if (right >= newSize || (left < oldSize
+                    && !(this.distances[this.order[right]] < this.distances[left]))) {
+                index = left++;
+            }
+            else {
+                index = this.order[right++];
+            }
+            this.distanceBuffer[i] = this.distances[index];
+            this.classBuffer[i] = this.classIndices[index];
+        }
+        swapBuffers();
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public double getDistance(int i) {
+        return this.distances[i];
+    }
+
+    public int getClassIndex(int i) {
+        return this.classIndices[i];
+    }
+
+    /**
+     *
+     * @return the backing distance array, only the first size() entries are valid
+     */
+    public double[] getDistances() {
+        return this.distances;
+    }
+
+    /**
+     *
+     * @return the backing class index array, only the first size() entries are valid
+     */
+    public int[] getClassIndices() {
+        return this.classIndices;
+    }
+
+    /**
+     * Sort the entries by ascending distance.
+     */
+    public void sort() {
+        for (int i = 0; i < this.size; i++) {
+            this.order[i] = i;
+        }
+        mergeSort(0, this.size);
+
+        for (int i = 0; i < this.size; i++) {
+            this.distanceBuffer[i] = this.distances[this.order[i]];
+            this.classBuffer[i] = this.classIndices[this.order[i]];
+        }
+        swapBuffers();
+    }
+
+    // makes the sorted buffers the entries of the orderline
+    private void swapBuffers() {
+        double[] sortedDistances = this.distanceBuffer;
+        this.distanceBuffer = this.distances;
+        this.distances = sortedDistances;
+        int[] sortedClasses = this.classBuffer;
+        this.classBuffer = this.classIndices;
+        this.classIndices = sortedClasses;
+    }
+
+    // sorts order[from, to) by distance, ties are left in their original order
+    private void mergeSort(int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        if (to - from <= INSERTION_SORT_THRESHOLD) {
+            for (int i = from + 1; i < to; i++) {
+                int index = this.order[i];
+                double distance = this.distances[index];
+                int j = i - 1;
+                while (j >= from && this.distances[this.order[j]] > distance) {
+                    this.order[j + 1] = this.order[j];
+                    j--;
+                }
+                this.order[j + 1] = index;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        mergeSort(from, middle);
+        mergeSort(middle, to);
+        if (this.distances[this.order[middle - 1]] <= this.distances[this.order[middle]]) {
+            return; // already in order
+        }
+
+        System.arraycopy(this.order, from, this.orderBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle
+                    && !(this.distances[this.orderBuffer[right]] < this.distances[this.orderBuffer[left]]))) {
+                this.order[i] = this.orderBuffer[left++];
+            }
+            else {
+                this.order[i] = this.orderBuffer[right++];
+            }
+        }
+    }
+
+    private void grow(int capacity) {
+        double[] newDistances = new double[capacity];
+        int[] newClassIndices = new int[capacity];
+        System.arraycopy(this.distances, 0, newDistances, 0, this.size);
+        System.arraycopy(this.classIndices, 0, newClassIndices, 0, this.size);
+        this.distances = newDistances;
+        this.classIndices = newClassIndices;
+        this.order = new int[capacity];
+        this.orderBuffer = new int[capacity];
+        this.distanceBuffer = new double[capacity];
+        this.classBuffer = new int[capacity];
+    }
+}
@@ -0,0 +1,101 @@
+package pers.lxs.shapelet;
+
+/**
+ * Prefix sums and prefix sums of squares of every series of a data set, so that the mean and
+ * standard deviation of any window (series, start, length) are O(1) lookups.
+ *
+ * The sums are taken of the values less the mean of their series, which keeps them small and the
+ * differences between them accurate. A SeriesStatistics is not modified once built and can be
+ * shared by any number of threads.
+ */
+public class SeriesStatistics {
+
+    private final double[][] prefixSums;
+    private final double[][] prefixSumsSq;
+    private final double[] seriesMeans;
+    private final int[] offsets; // index of the first value of each series in the array it is read from
+
+    /**
+     *
+     * @param series the values of each series, indexed as they are passed to the distance kernels
+     */
+    public SeriesStatistics(double[][] series) {
+        this(series.length);
+        for (int s = 0; s < series.length; s++) {
+            addSeries(s, series[s], 0, series[s].length);
+        }
+    }
+
+    /**
+     *
+     * @param values the values of all series, row-major as in TimeSeriesDataset
+     * @param numSeries the number of series
+     * @param seriesLength the length of every series
+     */
+    public SeriesStatistics(double[] values, int numSeries, int seriesLength) {
+        this(numSeries);
+        for (int s = 0; s < numSeries; s++) {
+            addSeries(s, values, s * seriesLength, seriesLength);
+        }
+    }
+
+    private SeriesStatistics(int numSeries) {
+        this.prefixSums = new double[numSeries][];
+        this.prefixSumsSq = new double[numSeries][];
+        this.seriesMeans = new double[numSeries];
+        this.offsets = new int[numSeries];
+    }
+
+    private void addSeries(int s, double[] values, int offset, int length) {
+        double total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += values[i];
+        }
+        double mean = length > 0 ? total / length : 0;
+
+        double[] sums = new double[length + 1];
+        double[] sumsSq = new double[length + 1];
+        for (int i = 0; i < length; i++) {
+            double value = values[offset + i] - mean;
+            sums[i + 1] = sums[i] + value;
+            sumsSq[i + 1] = sumsSq[i] + value * value;
+        }
+        this.prefixSums[s] = sums;
+        this.prefixSumsSq[s] = sumsSq;
+        this.seriesMeans[s] = mean;
+        this.offsets[s] = offset;
+    }
+
+    public int numSeries() {
+        return this.seriesMeans.length;
+    }
+
+    /**
+     *
+     * @param series index of the series
+     * @param start index of the first value of the window, in the array the series is read from
+     * @param length length of the window
+     * @return the mean of the window
+     */
+    public double mean(int series, int start, int length) {
+        double[] sums = this.prefixSums[series];
+        start -= this.offsets[series];
+        return (sums[start + length] - sums[start]) / length + this.seriesMeans[series];
+    }
+
+    /**
+     *
+     * @param series index of the series
+     * @param start index of the first value of the window, in the array the series is read from
+     * @param length length of the window
+     * @return the (population) standard deviation of the window, 0 if the window is flat
+     */
+    public double stdv(int series, int start, int length) {
+        double[] sums = this.prefixSums[series];
+        double[] sumsSq = this.prefixSumsSq[series];
+        start -= this.offsets[series];
+        double shiftedMean = (sums[start + length] - sums[start]) / length;
+        double variance = (sumsSq[start + length] - sumsSq[start]) / length - shiftedMean * shiftedMean;
+        return variance > 0 ? Math.sqrt(variance) : 0;
+    }
+}
@@ -2,11 +2,17 @@ package pers.lxs.shapelet;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.TreeMap;
 
 public  class Shapelet implements Comparable<Shapelet> {
+    // above this the 2^c class assignments of the info gain bound are not enumerated
+    private static final int MAX_BOUNDED_CLASSES = 8;
+
     public Double[] rawContent;
     public double[] content;
+    protected double[] distances; // distance to each series of the data set it was found in, by series index
+    protected long distancesChecksum; // TimeSeriesDataset.checksum() of that data set
     protected ArrayList<ArrayList<Double>> contentInMergedShapelets;
     public int seriesId;
     public int startPos;
@@ -24,8 +30,8 @@ public  class Shapelet implements Comparable<Shapelet> {
     protected Shapelet(ArrayList<ArrayList<Double>> content){
         this.contentInMergedShapelets = content;
     }
-    // TEMPORARY - for testing
-    protected Shapelet(double[] content, int seriesId, int startPos, double splitThreshold,
+    // restores a shapelet whose fitness has already been calculated, e.g. from a checkpoint
+    public Shapelet(double[] content, int seriesId, int startPos, double splitThreshold,
                      double gain, double gap) {
         this.content = content;
         this.seriesId = seriesId;
@@ -41,73 +47,134 @@ public  class Shapelet implements Comparable<Shapelet> {
         this.content = content;
     }
 
+    public double getSplitThreshold() {
+        return this.splitThreshold;
+    }
+
+    public double getSeparationGap() {
+        return this.separationGap;
+    }
+
+    /**
+     *
+     * @return the distance to each series of the data set the shapelet was found in, by series index,
+     * null if not known. Not to be modified
+     */
+    public double[] getDistances() {
+        return this.distances;
+    }
+
+    /**
+     *
+     * @param distances the distance to each series of a data set, by series index
+     * @param dataChecksum TimeSeriesDataset.checksum() of that data set
+     */
+    public void setDistances(double[] distances, long dataChecksum) {
+        this.distances = distances;
+        this.distancesChecksum = dataChecksum;
+    }
+
+    /**
+     *
+     * @param dataset a data set
+     * @return true if getDistances() holds the distances to the series of that data set, i.e. the
+     * data set holds the same series as the one they were computed for
+     */
+    public boolean hasDistancesFor(TimeSeriesDataset dataset) {
+        return this.distances != null && this.distances.length == dataset.numSeries()
+                && this.distancesChecksum == dataset.checksum();
+    }
+
     /*
-     * note: we calculate the threshold as this is used for finding the best split point in the data
-     * however, as this implementation of shapelets is as a filter, we do not actually use the
-     * threshold in the transformation.
+     * note: the threshold is the best split point of the orderline. The shapelet transform of the
+     * filter does not use it, as it outputs the distances themselves, but ShapeletTree tests the
+     * distance to the shapelet of each node against the threshold found on the series at that node.
      */
 
     public void calcInfoGainAndThreshold(ArrayList<OrderLineObj> orderline,
                                           TreeMap<Double, Integer> classDistribution) {
+        // map the class values to dense indices up front, in ascending order as in the TreeMap
+        double[] classValues = new double[classDistribution.size()];
+        int[] classTotals = new int[classValues.length];
+        int c = 0;
+        for (Double d : classDistribution.keySet()) {
+            classValues[c] = d;
+            classTotals[c] = classDistribution.get(d);
+            c++;
+        }
+
+        double[] distances = new double[orderline.size()];
+        int[] classIndices = new int[orderline.size()];
+        for (int i = 0; i < orderline.size(); i++) {
+            distances[i] = orderline.get(i).getDistance();
+            classIndices[i] = Arrays.binarySearch(classValues, orderline.get(i).getClassVal());
+        }
+        calcInfoGainAndThreshold(distances, classIndices, orderline.size(), classTotals);
+    }
+
+    /**
+     *
+     * @param orderline the sorted orderline of the shapelet
+     * @param classTotals the number of instances of each class in the whole data set
+     */
+    public void calcInfoGainAndThreshold(OrderLine orderline, int[] classTotals) {
+        calcInfoGainAndThreshold(orderline.getDistances(), orderline.getClassIndices(), orderline.size(),
+                classTotals);
+    }
+
+    /**
+     * Single pass over a sorted orderline: the class counts below the split point are updated as the
+     * split point moves, the counts above it follow from the totals.
+     *
+     * @param distances the distances of the orderline, in ascending order
+     * @param classIndices the dense class index of each entry of the orderline
+     * @param size the number of entries in the orderline
+     * @param classTotals the number of instances of each class in the whole data set
+     */
+    public void calcInfoGainAndThreshold(double[] distances, int[] classIndices, int size,
+                                          int[] classTotals) {
+        int numClasses = classTotals.length;
+        int[] lessClasses = new int[numClasses];
+        int[] greaterClasses = new int[numClasses];
+        int[] orderlineClasses = new int[numClasses];
+        int total = 0;
+        for (int i = 0; i < numClasses; i++) {
+            total += classTotals[i];
+        }
+        for (int i = 0; i < size; i++) {
+            orderlineClasses[classIndices[i]]++;
+        }
+        double parentEntropy = entropy(classTotals, total);
+
         // for each split point, starting between 0 and 1, ending between end-1 and end
         // addition: track the last threshold that was used, don't bother if it's the same as the last
         // one
-        double lastDist = orderline.get(0).getDistance(); // must be initialised as not visited(no point
+        double lastDist = distances[0]; // must be initialised as not visited(no point
         // breaking before any data!)
         double thisDist = -1;
 
         double bsfGain = -1;
         double threshold = -1;
 
-        // check that there is actually a split point
-        // for example, if all
-
-        for (int i = 1; i < orderline.size(); i++) {
-            thisDist = orderline.get(i).getDistance();
+        for (int i = 1; i < size; i++) {
+            lessClasses[classIndices[i - 1]]++; // entry i-1 has moved below the split point
+            thisDist = distances[i];
             if (i == 1 || thisDist != lastDist) { // check that threshold has moved(no point in sampling
                 // identical thresholds)- special case - if 0 and 1
                 // are the same dist
-
-                // count class instances below and above threshold
-                TreeMap<Double, Integer> lessClasses = new TreeMap<Double, Integer>();
-                TreeMap<Double, Integer> greaterClasses = new TreeMap<Double, Integer>();
-
-                for (double j : classDistribution.keySet()) {
-                    lessClasses.put(j, 0);
-                    greaterClasses.put(j, 0);
-                }
-
-                int sumOfLessClasses = 0;
-                int sumOfGreaterClasses = 0;
-
-                // visit those below threshold
-                for (int j = 0; j < i; j++) {
-                    double thisClassVal = orderline.get(j).getClassVal();
-                    int storedTotal = lessClasses.get(thisClassVal);
-                    storedTotal++;
-                    lessClasses.put(thisClassVal, storedTotal);
-                    sumOfLessClasses++;
+                int sumOfLessClasses = i;
+                int sumOfGreaterClasses = size - i;
+                for (int j = 0; j < numClasses; j++) {
+                    greaterClasses[j] = orderlineClasses[j] - lessClasses[j];
                 }
-
-                // visit those above threshold
-                for (int j = i; j < orderline.size(); j++) {
-                    double thisClassVal = orderline.get(j).getClassVal();
-                    int storedTotal = greaterClasses.get(thisClassVal);
-                    storedTotal++;
-                    greaterClasses.put(thisClassVal, storedTotal);
-                    sumOfGreaterClasses++;
-                }
-
                 int sumOfAllClasses = sumOfLessClasses + sumOfGreaterClasses;
 
-                double parentEntropy = entropy(classDistribution);
-
                 // calculate the info gain below the threshold
                 double lessFrac = (double) sumOfLessClasses / sumOfAllClasses;
-                double entropyLess = entropy(lessClasses);
+                double entropyLess = entropy(lessClasses, sumOfLessClasses);
                 // calculate the info gain above the threshold
                 double greaterFrac = (double) sumOfGreaterClasses / sumOfAllClasses;
-                double entropyGreater = entropy(greaterClasses);
+                double entropyGreater = entropy(greaterClasses, sumOfGreaterClasses);
 
                 double gain = parentEntropy - lessFrac * entropyLess - greaterFrac * entropyGreater;
                 if (gain > bsfGain) {
@@ -120,8 +187,139 @@ public  class Shapelet implements Comparable<Shapelet> {
         if (bsfGain >= 0) {
             this.informationGain = bsfGain;
             this.splitThreshold = threshold;
-            this.separationGap = calculateSeparationGap(orderline, threshold);
+            this.separationGap = calculateSeparationGap(distances, size, threshold);
+        }
+    }
+
+    /**
+     * Whether calcInfoGainUpperBound is worth computing. Above MAX_BOUNDED_CLASSES classes the 2^c
+     * class assignments cost more than the distances a pruned candidate saves.
+     *
+     * @param numClasses the number of classes in the data set
+     * @return false if calcInfoGainUpperBound only returns the parent entropy
+     */
+    public static boolean canBoundInfoGain(int numClasses) {
+        return numClasses <= MAX_BOUNDED_CLASSES;
+    }
+
+    /**
+     * Optimistic information gain of a candidate whose orderline is only partially known. The
+     * instances that are still to be measured are placed, class by class, entirely below or entirely
+     * above the split point that suits the candidate best. As the weighted entropy of a split is
+     * concave in its class counts this is never lower than the gain of the completed orderline.
+     *
+     * @param knownOrderline the instances measured so far, sorted by distance
+     * @param classTotals the number of instances of each class in the whole data set
+     * @return an upper bound of the information gain the candidate can reach
+     */
+    public static double calcInfoGainUpperBound(OrderLine knownOrderline, int[] classTotals) {
+        int numClasses = classTotals.length;
+        int total = 0;
+        for (int i = 0; i < numClasses; i++) {
+            total += classTotals[i];
         }
+
+        double parentEntropy = entropy(classTotals, total);
+        if (!canBoundInfoGain(numClasses)) {
+            return parentEntropy; // no bound, no split can do better than this
+        }
+
+        int size = knownOrderline.size();
+        int[] remaining = classTotals.clone();
+        for (int i = 0; i < size; i++) {
+            remaining[knownOrderline.getClassIndex(i)]--;
+        }
+        // only classes with instances left to measure can go either way
+        int[] open = new int[numClasses];
+        int numOpen = 0;
+        for (int j = 0; j < numClasses; j++) {
+            if (remaining[j] > 0) {
+                open[numOpen++] = j;
+            }
+        }
+
+        // total * entropy = n log n - sum of c log c over the class counts, from a table of x ln x
+        double[] xLogX = new double[total + 1];
+        for (int x = 1; x <= total; x++) {
+            xLogX[x] = x * Math.log(x);
+        }
+
+        int[] knownLess = new int[numClasses];
+        int[] less = new int[numClasses];
+        double minWeighted = Double.POSITIVE_INFINITY;
+        for (int p = 0; p <= size; p++) { // known instances below the split point
+            if (p > 0) {
+                knownLess[knownOrderline.getClassIndex(p - 1)]++;
+            }
+            // within a run of one class the weighted entropy is concave in p, so the gain peaks at an end
+            if (p > 0 && p < size && knownOrderline.getClassIndex(p - 1) == knownOrderline.getClassIndex(p)) {
+                continue;
+            }
+
+            int sumOfLessClasses = 0;
+            double lessTerms = 0;
+            double greaterTerms = 0;
+            for (int j = 0; j < numClasses; j++) {
+                less[j] = knownLess[j];
+                sumOfLessClasses += less[j];
+                lessTerms += xLogX[less[j]];
+                greaterTerms += xLogX[classTotals[j] - less[j]];
+            }
+            // visit the open classes' remainders below the split point in Gray code order, one class
+            // moves per step
+            for (int step = 0; step < (1 << numOpen); step++) {
+                if (step > 0) {
+                    int j = open[Integer.numberOfTrailingZeros(step)];
+                    lessTerms -= xLogX[less[j]];
+                    greaterTerms -= xLogX[classTotals[j] - less[j]];
+                    int moved = less[j] == knownLess[j] ? remaining[j] : -remaining[j];
+                    less[j] += moved;
+                    sumOfLessClasses += moved;
+                    lessTerms += xLogX[less[j]];
+                    greaterTerms += xLogX[classTotals[j] - less[j]];
+                }
+                int sumOfGreaterClasses = total - sumOfLessClasses;
+                if (sumOfLessClasses == 0 || sumOfGreaterClasses == 0) {
+                    continue;
+                }
+                double weighted = xLogX[sumOfLessClasses] - lessTerms + xLogX[sumOfGreaterClasses] - greaterTerms;
+                if (weighted < minWeighted) {
+                    minWeighted = weighted;
+                }
+            }
+        }
+        double bound = parentEntropy - minWeighted / (total * Math.log(2));
+        if (!(bound > 0)) {
+            bound = 0;
+        }
+        return bound;
+    }
+
+    protected double calculateSeparationGap(double[] distances, int size, double distanceThreshold) {
+
+        double sumLeft = 0;
+        double leftSize = 0;
+        double sumRight = 0;
+        double rightSize = 0;
+
+        for (int i = 0; i < size; i++) {
+            if (distances[i] < distanceThreshold) {
+                sumLeft += distances[i];
+                leftSize++;
+            }
+            else {
+                sumRight += distances[i];
+                rightSize++;
+            }
+        }
+
+        double thisSeparationGap = 1 / rightSize * sumRight - 1 / leftSize * sumLeft;
+
+        if (rightSize == 0 || leftSize == 0) {
+            return -1; // no seperation, see calculateSeparationGap(ArrayList, double)
+        }
+
+        return thisSeparationGap;
     }
 
     protected double calculateSeparationGap(ArrayList<OrderLineObj> orderline,
@@ -194,33 +392,14 @@ public  class Shapelet implements Comparable<Shapelet> {
 
     }
 
-    private static double entropy(TreeMap<Double, Integer> classDistributions) {
-        if (classDistributions.size() == 1) {
-            return 0;
-        }
-
-        double thisPart;
-        double toAdd;
-        int total = 0;
-        for (Double d : classDistributions.keySet()) {
-            total += classDistributions.get(d);
-        }
-        // to avoid NaN calculations, the individual parts of the entropy are calculated and summed.
-        // i.e. if there is 0 of a class, then that part would calculate as NaN, but this can be caught
-        // and
-        // set to 0.
-        ArrayList<Double> entropyParts = new ArrayList<Double>();
-        for (Double d : classDistributions.keySet()) {
-            thisPart = (double) classDistributions.get(d) / total;
-            toAdd = -thisPart * Math.log10(thisPart) / Math.log10(2);
-            if (Double.isNaN(toAdd))
-                toAdd = 0;
-            entropyParts.add(toAdd);
-        }
-
+    // to avoid NaN calculations, a class with no instances adds nothing to the entropy
+    private static double entropy(int[] classCounts, int total) {
         double entropy = 0;
-        for (int i = 0; i < entropyParts.size(); i++) {
-            entropy += entropyParts.get(i);
+        for (int i = 0; i < classCounts.length; i++) {
+            if (classCounts[i] > 0) {
+                double thisPart = (double) classCounts[i] / total;
+                entropy += -thisPart * Math.log10(thisPart) / Math.log10(2);
+            }
         }
         return entropy;
     }
@@ -0,0 +1,285 @@
+package pers.lxs.shapelet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A set of shapelets in a versioned binary file that is memory-mapped, not parsed, when loaded. All
+ * numbers are little-endian. The file is laid out as
+ *
+ * <pre>
+ * header   magic "SHPM", version, number of shapelets, reserved (4 ints), index offset, data offset
+ *          (2 longs)
+ * index    one fixed size entry per shapelet: seriesId, startPos, content length, raw content length
+ *          or -1 (4 ints), information gain, split threshold, separation gap (3 doubles), content
+ *          offset, raw content offset (2 longs)
+ * data     the content of all shapelets one after the other as float64, then their raw content
+ * </pre>
+ *
+ * The content of a shapelet is read through a DoubleBuffer view of the mapped file, so thousands of
+ * shapelets are available as soon as the file is mapped. getShapelet and toShapelets copy shapelets
+ * to the heap, as the distance kernels work on double arrays, ShapeletFilter.createFilterFromModel
+ * does so once for all shapelets of the model. A loaded model is read-only and can be shared by any
+ * number of threads.
+ *
+ * A model is written to a temporary file that is then moved over the model file, so the model file
+ * always holds a complete model. Loading checks the data offset and every index entry against the
+ * layout above and the size of the file.
+ */
+public class ShapeletModel {
+
+    private static final int MAGIC = 0x4d504853; // "SHPM" read as a little-endian int
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ENTRY_SIZE = 56;
+
+    private final ByteBuffer buffer;
+    private final int numShapelets;
+    private final int indexOffset;
+
+    private ShapeletModel(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a shapelet model file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported shapelet model version " + buffer.getInt(4));
+        }
+        this.numShapelets = buffer.getInt(8);
+        long indexOffset = buffer.getLong(16);
+        if (this.numShapelets < 0 || indexOffset < HEADER_SIZE
+                || indexOffset + (long) this.numShapelets * ENTRY_SIZE > buffer.capacity()) {
+            throw new IOException("Shapelet model file is truncated or corrupt");
+        }
+        this.indexOffset = (int) indexOffset;
+        long dataOffset = buffer.getLong(24);
+        if (dataOffset < indexOffset + (long) this.numShapelets * ENTRY_SIZE || dataOffset > buffer.capacity()) {
+            throw new IOException("Shapelet model data offset " + dataOffset + " is outside the data section");
+        }
+        for (int i = 0; i < this.numShapelets; i++) {
+            int entry = this.indexOffset + i * ENTRY_SIZE;
+            int length = buffer.getInt(entry + 8);
+            int rawLength = buffer.getInt(entry + 12);
+            if (length < 0 || rawLength < -1
+                    || !fits(buffer.getLong(entry + 40), length, dataOffset, buffer.capacity())
+                    || (rawLength >= 0
+                    && !fits(buffer.getLong(entry + 48), rawLength, dataOffset, buffer.capacity()))) {
+                throw new IOException("Shapelet model entry " + i + " points outside the file");
+            }
+        }
+    }
+
+    // whether length doubles from offset lie within the data section
+    private static boolean fits(long offset, int length, long dataOffset, int capacity) {
+        return offset >= dataOffset && offset + 8L * length <= capacity;
+    }
+
+    /**
+     * Write shapelets to a model file, replacing any file of that name. The file is replaced in one
+     * step, a failed write leaves the previous file as it was.
+     *
+     * @param shapelets the shapelets, in the order they are to be loaded
+     * @param file the model file
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(List<Shapelet> shapelets, File file) throws IOException {
+        long indexOffset = HEADER_SIZE;
+        long dataOffset = indexOffset + (long) shapelets.size() * ENTRY_SIZE;
+        long contentSize = 0;
+        long rawSize = 0;
+        for (int i = 0; i < shapelets.size(); i++) {
+            contentSize += 8L * shapelets.get(i).content.length;
+            if (shapelets.get(i).rawContent != null) {
+                rawSize += 8L * shapelets.get(i).rawContent.length;
+            }
+        }
+        long size = dataOffset + contentSize + rawSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Shapelet model of " + size + " bytes is too large to be mapped");
+        }
+
+        ByteBuffer out = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION).putInt(shapelets.size()).putInt(0);
+        out.putLong(indexOffset).putLong(dataOffset);
+
+        long contentOffset = dataOffset;
+        long rawOffset = dataOffset + contentSize;
+        for (int i = 0; i < shapelets.size(); i++) {
+            Shapelet shapelet = shapelets.get(i);
+            int entry = (int) (indexOffset + (long) i * ENTRY_SIZE);
+            out.putInt(entry, shapelet.seriesId);
+            out.putInt(entry + 4, shapelet.startPos);
+            out.putInt(entry + 8, shapelet.content.length);
+            out.putInt(entry + 12, shapelet.rawContent == null ? -1 : shapelet.rawContent.length);
+            out.putDouble(entry + 16, shapelet.informationGain);
+            out.putDouble(entry + 24, shapelet.getSplitThreshold());
+            out.putDouble(entry + 32, shapelet.getSeparationGap());
+            out.putLong(entry + 40, contentOffset);
+            out.putLong(entry + 48, rawOffset);
+
+            for (int j = 0; j < shapelet.content.length; j++) {
+                out.putDouble((int) contentOffset, shapelet.content[j]);
+                contentOffset += 8;
+            }
+            if (shapelet.rawContent != null) {
+                for (int j = 0; j < shapelet.rawContent.length; j++) {
+                    out.putDouble((int) rawOffset, shapelet.rawContent[j]);
+                    rawOffset += 8;
+                }
+            }
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                FileChannel channel = stream.getChannel();
+                out.position(0);
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+            finally {
+                stream.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Map a model file. The file must not be modified while the model is in use.
+     *
+     * @param file the model file
+     * @return the model
+     * @throws IOException if the file cannot be mapped, is not a model file or is truncated or corrupt
+     */
+    public static ShapeletModel load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Shapelet model " + file + " is too large to be mapped");
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ShapeletModel(mapped);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    public int numShapelets() {
+        return this.numShapelets;
+    }
+
+    public int getSeriesId(int i) {
+        return this.buffer.getInt(entry(i));
+    }
+
+    public int getStartPos(int i) {
+        return this.buffer.getInt(entry(i) + 4);
+    }
+
+    public int getLength(int i) {
+        return this.buffer.getInt(entry(i) + 8);
+    }
+
+    public double getInformationGain(int i) {
+        return this.buffer.getDouble(entry(i) + 16);
+    }
+
+    public double getSplitThreshold(int i) {
+        return this.buffer.getDouble(entry(i) + 24);
+    }
+
+    public double getSeparationGap(int i) {
+        return this.buffer.getDouble(entry(i) + 32);
+    }
+
+    /**
+     *
+     * @param i index of a shapelet
+     * @return a read-only view of the z-normalised content of the shapelet in the mapped file
+     */
+    public DoubleBuffer getContent(int i) {
+        return view((int) this.buffer.getLong(entry(i) + 40), getLength(i));
+    }
+
+    /**
+     *
+     * @param i index of a shapelet
+     * @return a read-only view of the raw content of the shapelet (its values followed by its class
+     * value), null if it was not stored
+     */
+    public DoubleBuffer getRawContent(int i) {
+        int rawLength = this.buffer.getInt(entry(i) + 12);
+        if (rawLength < 0) {
+            return null;
+        }
+        return view((int) this.buffer.getLong(entry(i) + 48), rawLength);
+    }
+
+    /**
+     *
+     * @param i index of a shapelet
+     * @return a copy of the shapelet, with its fitness
+     */
+    public Shapelet getShapelet(int i) {
+        double[] content = new double[getLength(i)];
+        getContent(i).get(content);
+        Shapelet shapelet = new Shapelet(content, getSeriesId(i), getStartPos(i), getSplitThreshold(i),
+                getInformationGain(i), getSeparationGap(i));
+        DoubleBuffer raw = getRawContent(i);
+        if (raw != null) {
+            shapelet.rawContent = new Double[raw.remaining()];
+            for (int j = 0; j < shapelet.rawContent.length; j++) {
+                shapelet.rawContent[j] = raw.get(j);
+            }
+        }
+        return shapelet;
+    }
+
+    /**
+     *
+     * @return heap copies of all shapelets, in the order they were written
+     */
+    public ArrayList<Shapelet> toShapelets() {
+        ArrayList<Shapelet> shapelets = new ArrayList<Shapelet>(this.numShapelets);
+        for (int i = 0; i < this.numShapelets; i++) {
+            shapelets.add(getShapelet(i));
+        }
+        return shapelets;
+    }
+
+    private int entry(int i) {
+        if (i < 0 || i >= this.numShapelets) {
+            throw new IndexOutOfBoundsException("Shapelet " + i + " of " + this.numShapelets);
+        }
+        return this.indexOffset + i * ENTRY_SIZE;
+    }
+
+    private DoubleBuffer view(int offset, int length) {
+        ByteBuffer slice = this.buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + 8 * length);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().asReadOnlyBuffer();
+    }
+}
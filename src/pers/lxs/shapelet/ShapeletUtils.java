@@ -1,8 +1,16 @@
 package pers.lxs.shapelet;
 
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.bwaldvogel.liblinear.Feature;
 import de.bwaldvogel.liblinear.FeatureNode;
@@ -12,6 +20,9 @@ import weka.core.Instances;
 
 public class ShapeletUtils {
 	
+   private static final int INSTANCE_BLOCK = 64; // series per block of the shapelet transform
+   private static final int SHAPELET_BLOCK = 256; // shapelets per block of the shapelet transform
+	
    /**
     * load data set into memory
     * @param fileName	file path
@@ -38,18 +49,196 @@ public class ShapeletUtils {
     * @return
     */
    public static Feature[][] transferFeature(List<Shapelet> shapelets, Instances data) {
-	   Feature[][] features = new Feature[data.numInstances()][shapelets.size()];
+	   return transferFeature(shapelets, data, false);
+   }
+   
+   /**
+    * transfer data set into shapelet's feature, abandoning hopeless windows early
+    * @param shapelets
+    * @param data
+    * @param candidateReordering	compare the values of each shapelet in descending order of magnitude
+    * @return
+    */
+   public static Feature[][] transferFeature(List<Shapelet> shapelets, Instances data, boolean candidateReordering) {
+	   return toFeatures(transform(shapelets, new TimeSeriesDataset(data), candidateReordering, 1));
+   }
+   
+   /**
+    * transfer data set into shapelet's feature on several threads
+    * @param shapelets
+    * @param data
+    * @param numThreads	number of threads the blocks of the feature matrix are computed on (1 = serial)
+    * @return features[i][j] is the distance from shapelet j to instance i
+    */
+   public static double[][] transform(List<Shapelet> shapelets, Instances data, int numThreads) {
+	   return transform(shapelets, new TimeSeriesDataset(data), false, numThreads);
+   }
+   
+   /**
+    * transfer data set into shapelet's feature on an existing pool, so that repeated transforms do
+    * not start threads of their own
+    * @param shapelets
+    * @param data
+    * @param executor	the pool the blocks of the feature matrix are computed on, not shut down (null = serial)
+    * @return features[i][j] is the distance from shapelet j to instance i
+    */
+   public static double[][] transform(List<Shapelet> shapelets, Instances data, ExecutorService executor) {
+	   return transform(shapelets, new TimeSeriesDataset(data), false, executor);
+   }
+   
+   /**
+    * transfer data set into shapelet's feature. The feature matrix is split into blocks of instances
+    * and shapelets that are computed independently, each block reads the same few series and
+    * shapelets over and over while they are in cache. A shapelet that holds its distances to the same
+    * series from discovery (see Shapelet.hasDistancesFor) has them copied instead, so transforming the
+    * training data after discovery costs next to nothing
+    * @param shapelets
+    * @param dataset
+    * @param candidateReordering	compare the values of each shapelet in descending order of magnitude
+    * @param numThreads	number of threads the blocks are computed on (1 = serial)
+    * @return features[i][j] is the distance from shapelet j to series i
+    */
+   public static double[][] transform(List<Shapelet> shapelets, TimeSeriesDataset dataset,
+		   boolean candidateReordering, int numThreads) {
+	   if(numThreads <= 1) {
+		   return transform(shapelets, dataset, candidateReordering, (ExecutorService) null);
+	   }
+	   ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+	   try {
+		   return transform(shapelets, dataset, candidateReordering, pool);
+	   }
+	   finally {
+		   pool.shutdown();
+	   }
+   }
+   
+   /**
+    * transfer data set into shapelet's feature as transform(shapelets, dataset, candidateReordering,
+    * numThreads), with the blocks computed on an existing pool. The calling thread waits for them,
+    * so it must not be a thread of a bounded pool that has no other thread free
+    * @param shapelets
+    * @param dataset
+    * @param candidateReordering	compare the values of each shapelet in descending order of magnitude
+    * @param executor	the pool the blocks are computed on, not shut down (null = serial)
+    * @return features[i][j] is the distance from shapelet j to series i
+    */
+   public static double[][] transform(List<Shapelet> shapelets, final TimeSeriesDataset dataset,
+		   boolean candidateReordering, ExecutorService executor) {
+	   final double[][] features = new double[dataset.numSeries()][shapelets.size()];
+	   final double[][] contents = new double[shapelets.size()][];
+	   final int[][] orders = new int[shapelets.size()][];
+	   for(int j = 0; j < shapelets.size(); j++) {
+		   Shapelet shapelet = shapelets.get(j);
+		   if(shapelet.hasDistancesFor(dataset)) {
+			   double[] distances = shapelet.getDistances();
+			   for(int i = 0; i < features.length; i++) {
+				   features[i][j] = distances[i];
+			   }
+			   continue; // contents[j] stays null, the blocks skip the shapelet
+		   }
+		   contents[j] = shapelet.content;
+		   if(candidateReordering) {
+			   orders[j] = DistanceKernel.sortByMagnitude(contents[j]);
+		   }
+	   }
+	   dataset.getStatistics(); // built once, before the blocks share it
 	   
-	   for(int i = 0; i < data.numInstances(); i++) {
-		   for(int j = 0; j < shapelets.size(); j++) {
-			   double distance = subsequenceDistance(shapelets.get(j).content, data.get(i));
-			   features[i][j] = new FeatureNode(j, distance);
-		   }		   
-	   }	   
+	   List<Callable<Void>> blocks = new ArrayList<Callable<Void>>();
+	   for(int i = 0; i < dataset.numSeries(); i += INSTANCE_BLOCK) {
+		   for(int j = 0; j < contents.length; j += SHAPELET_BLOCK) {
+			   final int fromInstance = i;
+			   final int fromShapelet = j;
+			   blocks.add(new Callable<Void>() {
+				   public Void call() {
+					   transformBlock(contents, orders, dataset, features, fromInstance, fromShapelet);
+					   return null;
+				   }
+			   });
+		   }
+	   }
 	   
+	   if(executor == null || blocks.size() <= 1) {
+		   for(int b = 0; b < blocks.size(); b++) {
+			   try {
+				   blocks.get(b).call();
+			   }
+			   catch (Exception e) {
+				   throw new IllegalStateException("Shapelet transform failed", e);
+			   }
+		   }
+		   return features;
+	   }
+	   
+	   try {
+		   for(Future<Void> block : executor.invokeAll(blocks)) {
+			   block.get();
+		   }
+	   }
+	   catch (InterruptedException e) {
+		   Thread.currentThread().interrupt();
+		   throw new IllegalStateException("Interrupted during shapelet transform", e);
+	   }
+	   catch (ExecutionException e) {
+		   throw new IllegalStateException("Shapelet transform failed", e.getCause());
+	   }
 	   return features;
    }
    
+   private static void transformBlock(double[][] contents, int[][] orders, TimeSeriesDataset dataset,
+		   double[][] features, int fromInstance, int fromShapelet) {
+	   double[] values = dataset.getValues();
+	   SeriesStatistics statistics = dataset.getStatistics();
+	   int toInstance = Math.min(fromInstance + INSTANCE_BLOCK, dataset.numSeries());
+	   int toShapelet = Math.min(fromShapelet + SHAPELET_BLOCK, contents.length);
+	   
+	   for(int i = fromInstance; i < toInstance; i++) {
+		   int from = dataset.offset(i);
+		   double[] row = features[i];
+		   for(int j = fromShapelet; j < toShapelet; j++) {
+			   if(contents[j] == null) {
+				   continue;
+			   }
+			   row[j] = DistanceKernel.earlyAbandonDistance(contents[j], values, from,
+					   from + dataset.seriesLength(), orders[j], statistics, i);
+		   }
+	   }
+   }
+   
+   /**
+    * wrap a feature matrix for liblinear
+    * @param features	features[i][j] is the value of feature j of instance i
+    * @return
+    */
+   public static Feature[][] toFeatures(double[][] features) {
+	   Feature[][] nodes = new Feature[features.length][];
+	   for(int i = 0; i < features.length; i++) {
+		   nodes[i] = new Feature[features[i].length];
+		   for(int j = 0; j < features[i].length; j++) {
+			   nodes[i][j] = new FeatureNode(j, features[i][j]);
+		   }
+	   }
+	   return nodes;
+   }
+   
+   public static String convertToArff(String relationName, double[][] features) {
+	   List<double[]> data = new ArrayList<double[]>();
+	   for(int i = 0; i < features.length; i++) {
+		   data.add(features[i]);
+	   }
+	   return new ArffConverter().convertToArff(relationName, data, 0);
+   }
+   
+   /**
+    * write a feature matrix in arff format as convertToArff does, without building the document in memory
+    * @param relationName
+    * @param features	class value first in each row
+    * @param out	closed when the document is written
+    * @throws IOException
+    */
+   public static void writeArff(String relationName, double[][] features, Writer out) throws IOException {
+	   new ArffConverter().writeArff(relationName, Arrays.asList(features), 0, out);
+   }
+   
    public static String convertToArff(String relationName, Feature[][] features) {
 	   List<double[]> data = new ArrayList<double[]>();
 	   
@@ -73,34 +262,30 @@ public class ShapeletUtils {
     * @return
     */
    public static double subsequenceDistance(double[] candidate, Instance timeSeriesIns) {
-       double[] timeSeries = timeSeriesIns.toDoubleArray();
-       return subsequenceDistance(candidate, timeSeries);
+       double[] timeSeries = TimeSeriesDataset.seriesValues(timeSeriesIns); // class value left out
+       return DistanceKernel.subsequenceDistance(candidate, timeSeries, 0, timeSeries.length);
    }
 
-   public static double subsequenceDistance(double[] candidate, double[] timeSeries) {
+   /**
+    *
+    * @param candidate
+    * @param timeSeriesIns
+    * @param order	order in which the candidate values are compared, null for first to last
+    * @return
+    */
+   public static double earlyAbandonDistance(double[] candidate, Instance timeSeriesIns, int[] order) {
+       double[] timeSeries = TimeSeriesDataset.seriesValues(timeSeriesIns);
+       return DistanceKernel.earlyAbandonDistance(candidate, timeSeries, 0, timeSeries.length, order);
+   }
 
-       double bestSum = Double.MAX_VALUE;
-       double sum = 0;
-       double[] subseq;
-
-       // for all possible subsequences of two
-       for (int i = 0; i <= timeSeries.length - candidate.length - 1; i++) {
-           sum = 0;
-           // get subsequence of two that is the same lenght as one
-           subseq = new double[candidate.length];
-
-           for (int j = i; j < i + candidate.length; j++) {
-               subseq[j - i] = timeSeries[j];
-           }
-           subseq = zNorm(subseq, false); // Z-NORM HERE
-           for (int j = 0; j < candidate.length; j++) {
-               sum += (candidate[j] - subseq[j]) * (candidate[j] - subseq[j]);
-           }
-           if (sum < bestSum) {
-               bestSum = sum;
-           }
-       }
-       return Math.sqrt((1.0 / candidate.length * bestSum));
+   /**
+    *
+    * @param candidate
+    * @param timeSeries	the series without its class value, as from TimeSeriesDataset.seriesValues
+    * @return
+    */
+   public static double subsequenceDistance(double[] candidate, double[] timeSeries) {
+       return DistanceKernel.subsequenceDistance(candidate, timeSeries, 0, timeSeries.length);
    }
 
    /**
@@ -0,0 +1,156 @@
+package pers.lxs.shapelet;
+
+/**
+ * The dot products of one candidate window of a source series with every window of every series of
+ * a data set, kept up to date as the candidate slides along the source series, in the style of
+ * STOMP. Moving the candidate from start s to s + 1 updates each dot product in O(1) from the one
+ * of the previous window pair, so all candidates of one length of the source series are compared
+ * to the data set in O(n^2) per series instead of O(n^2 m).
+ *
+ * The dot products are taken of the values less the mean of their series, which keeps them small
+ * and the z-normalised distances computed from them accurate. A SlidingDotProducts holds mutable
+ * state and must only be used by one thread at a time.
+ */
+public class SlidingDotProducts {
+
+    private final TimeSeriesDataset dataset;
+    private final SeriesStatistics statistics;
+    private final int seriesId;
+    private final int seriesLength;
+    private final double[][] shifted; // the values of every series less the mean of the series
+    private final double[] seriesMeans;
+    private double[][] products; // products[series][t], the window at t against the candidate
+    private double[][] firstWindowProducts; // the first window of each series against every candidate
+    private int length;
+    private int start;
+    private double candidateMean;
+    private double candidateStdv;
+
+    /**
+     *
+     * @param dataset the series the candidates are compared to
+     * @param seriesId the index of the series the candidates are taken from
+     */
+    public SlidingDotProducts(TimeSeriesDataset dataset, int seriesId) {
+        this.dataset = dataset;
+        this.statistics = dataset.getStatistics();
+        this.seriesId = seriesId;
+        this.seriesLength = dataset.seriesLength();
+        this.shifted = new double[dataset.numSeries()][this.seriesLength];
+        this.seriesMeans = new double[dataset.numSeries()];
+
+        double[] values = dataset.getValues();
+        for (int s = 0; s < dataset.numSeries(); s++) {
+            int offset = dataset.offset(s);
+            double total = 0;
+            for (int i = 0; i < this.seriesLength; i++) {
+                total += values[offset + i];
+            }
+            this.seriesMeans[s] = this.seriesLength > 0 ? total / this.seriesLength : 0;
+            for (int i = 0; i < this.seriesLength; i++) {
+                this.shifted[s][i] = values[offset + i] - this.seriesMeans[s];
+            }
+        }
+    }
+
+    /**
+     * Compute the dot products of the candidate at start 0 of the given length directly.
+     *
+     * @param length the candidate length, at most the series length
+     */
+    public void reset(int length) {
+        int numSeries = this.dataset.numSeries();
+        int numWindows = this.seriesLength - length + 1;
+        this.length = length;
+        this.start = 0;
+        this.products = new double[numSeries][numWindows];
+        this.firstWindowProducts = new double[numSeries][numWindows];
+
+        double[] source = this.shifted[this.seriesId];
+        for (int s = 0; s < numSeries; s++) {
+            double[] target = this.shifted[s];
+            for (int t = 0; t < numWindows; t++) {
+                this.products[s][t] = dotProduct(source, 0, target, t);
+                this.firstWindowProducts[s][t] = dotProduct(source, t, target, 0);
+            }
+        }
+        updateCandidateStatistics();
+    }
+
+    /**
+     * Slide the candidate on to the next start position.
+     */
+    public void advance() {
+        double[] source = this.shifted[this.seriesId];
+        double out = source[this.start];
+        double in = source[this.start + this.length];
+        this.start++;
+
+        for (int s = 0; s < this.products.length; s++) {
+            double[] target = this.shifted[s];
+            double[] row = this.products[s];
+            for (int t = row.length - 1; t > 0; t--) {
+                row[t] = row[t - 1] - out * target[t - 1] + in * target[t + this.length - 1];
+            }
+            row[0] = this.firstWindowProducts[s][this.start];
+        }
+        updateCandidateStatistics();
+    }
+
+    /**
+     *
+     * @return the start position of the current candidate
+     */
+    public int getStart() {
+        return this.start;
+    }
+
+    /**
+     *
+     * @param series index of a series of the data set
+     * @return the distance from the current candidate to its best matching window of the series, as
+     * DistanceKernel.subsequenceDistance gives it for the z-normalised candidate
+     */
+    public double subsequenceDistance(int series) {
+        double bestSum = Double.MAX_VALUE;
+        // a flat candidate z-normalises to NaN, as in DistanceKernel it matches no window
+        if (this.candidateStdv == 0) {
+            return Math.sqrt((1.0 / this.length * bestSum));
+        }
+
+        double[] row = this.products[series];
+        int offset = this.dataset.offset(series);
+        for (int t = 0; t < row.length; t++) {
+            double stdv = this.statistics.stdv(series, offset + t, this.length);
+            if (stdv == 0) {
+                continue;
+            }
+            double mean = this.statistics.mean(series, offset + t, this.length) - this.seriesMeans[series];
+            double correlation = (row[t] - this.length * this.candidateMean * mean)
+                    / (this.length * this.candidateStdv * stdv);
+            double sum = 2 * this.length * (1 - correlation);
+            if (sum < 0) {
+                sum = 0;
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+            }
+        }
+        return Math.sqrt((1.0 / this.length * bestSum));
+    }
+
+    private void updateCandidateStatistics() {
+        int from = this.dataset.offset(this.seriesId) + this.start;
+        this.candidateMean = this.statistics.mean(this.seriesId, from, this.length)
+                - this.seriesMeans[this.seriesId];
+        this.candidateStdv = this.statistics.stdv(this.seriesId, from, this.length);
+    }
+
+    private double dotProduct(double[] a, int aFrom, double[] b, int bFrom) {
+        double sum = 0;
+        for (int j = 0; j < this.length; j++) {
+            sum += a[aFrom + j] * b[bFrom + j];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,226 @@
+package pers.lxs.shapelet;
+
+import java.util.List;
+
+/**
+ * Shapelet transform of a live stream of values. The stream is cut into sliding windows of a fixed
+ * length and every window is described by the distance from each shapelet to its best matching
+ * subsequence of the window, the same features ShapeletUtils.transform gives for a series of that
+ * length.
+ *
+ * Each value that arrives ends one new subsequence per shapelet length, and the distance of every
+ * shapelet to that subsequence is computed once. The minimum over the window is then kept by a
+ * monotonic deque per shapelet, so a value costs O(sum of the shapelet lengths) and the memory held
+ * is bounded by the window length times the number of shapelets. A StreamingShapeletTransform
+ * holds the state of one stream and must only be fed by one thread at a time.
+ */
+public class StreamingShapeletTransform {
+
+    private final double[][] contents;
+    private final int windowLength;
+    private final double[] window; // ring buffer of the last windowLength values
+    private final int[] lengths; // distinct shapelet lengths
+    private final int[] lengthIndex; // index in lengths of the length of each shapelet
+    private final double[] means; // statistics of the newest subsequence of each length
+    private final double[] stdvs;
+    private final SlidingMinimum[] minima;
+    private long numValues; // values seen so far
+
+    /**
+     *
+     * @param shapelets the shapelets the windows are described by, e.g. as found by a ShapeletFilter
+     * @param windowLength the number of values of a window
+     */
+    public StreamingShapeletTransform(List<Shapelet> shapelets, int windowLength) {
+        if (windowLength < 1) {
+            throw new IllegalArgumentException("Window length must be positive, got " + windowLength);
+        }
+        this.windowLength = windowLength;
+        this.window = new double[windowLength];
+        this.contents = new double[shapelets.size()][];
+        this.lengthIndex = new int[shapelets.size()];
+        this.minima = new SlidingMinimum[shapelets.size()];
+
+        int[] distinct = new int[shapelets.size()];
+        int numLengths = 0;
+        for (int j = 0; j < shapelets.size(); j++) {
+            this.contents[j] = shapelets.get(j).content;
+            int length = this.contents[j].length;
+            int l = 0;
+            while (l < numLengths && distinct[l] != length) {
+                l++;
+            }
+            if (l == numLengths) {
+                distinct[numLengths++] = length;
+            }
+            this.lengthIndex[j] = l;
+            // a window holds windowLength - length + 1 subsequences of the shapelet's length
+            this.minima[j] = new SlidingMinimum(Math.max(1, windowLength - length + 1));
+        }
+        this.lengths = new int[numLengths];
+        System.arraycopy(distinct, 0, this.lengths, 0, numLengths);
+        this.means = new double[numLengths];
+        this.stdvs = new double[numLengths];
+        this.numValues = 0;
+    }
+
+    public int numFeatures() {
+        return this.contents.length;
+    }
+
+    public int getWindowLength() {
+        return this.windowLength;
+    }
+
+    /**
+     * Forget all values seen so far, to start on a new stream.
+     */
+    public void reset() {
+        this.numValues = 0;
+        for (int j = 0; j < this.minima.length; j++) {
+            this.minima[j].clear();
+        }
+    }
+
+    /**
+     * Add the next value of the stream.
+     *
+     * @param value the value
+     * @param features receives the features of the window that ends with the value, numFeatures()
+     * values are written
+     * @return true if the features were written, false while fewer than windowLength values have
+     * been seen
+     */
+    public boolean offer(double value, double[] features) {
+        return offer(value, features, 0);
+    }
+
+    /**
+     * Add a micro-batch of values of the stream.
+     *
+     * @param values the values, in stream order
+     * @param from index of the first value to add
+     * @param to index after the last value to add
+     * @param features receives the features of each completed window one after the other, room for
+     * (to - from) * numFeatures() values is enough
+     * @return the number of windows whose features were written
+     */
+    public int offer(double[] values, int from, int to, double[] features) {
+        int numWindows = 0;
+        for (int i = from; i < to; i++) {
+            if (offer(values[i], features, numWindows * this.contents.length)) {
+                numWindows++;
+            }
+        }
+        return numWindows;
+    }
+
+    private boolean offer(double value, double[] features, int featureOffset) {
+        long time = this.numValues++;
+        this.window[ringIndex(time)] = value;
+
+        // statistics of the subsequence of each length that ends with the value
+        for (int l = 0; l < this.lengths.length; l++) {
+            int length = this.lengths[l];
+            if (length > this.numValues || length > this.windowLength) {
+                this.stdvs[l] = 0;
+                continue;
+            }
+            int first = ringIndex(time - length + 1);
+            double sum = 0;
+            for (int k = 0, r = first; k < length; k++, r = r + 1 < this.windowLength ? r + 1 : 0) {
+                sum += this.window[r];
+            }
+            double mean = sum / length;
+            double sumSq = 0;
+            for (int k = 0, r = first; k < length; k++, r = r + 1 < this.windowLength ? r + 1 : 0) {
+                double diff = this.window[r] - mean;
+                sumSq += diff * diff;
+            }
+            this.means[l] = mean;
+            this.stdvs[l] = Math.sqrt(sumSq / length);
+        }
+
+        for (int j = 0; j < this.contents.length; j++) {
+            double[] content = this.contents[j];
+            int length = content.length;
+            SlidingMinimum minimum = this.minima[j];
+            // the oldest subsequence that still lies in the window starts windowLength - 1 values back
+            minimum.expire(time - this.windowLength + length);
+
+            // a flat subsequence cannot be z-normalised, as in DistanceKernel it never matches
+            double stdv = this.stdvs[this.lengthIndex[j]];
+            if (stdv != 0) {
+                double mean = this.means[this.lengthIndex[j]];
+                int first = ringIndex(time - length + 1);
+                double sum = 0;
+                for (int k = 0, r = first; k < length; k++, r = r + 1 < this.windowLength ? r + 1 : 0) {
+                    double diff = content[k] - (this.window[r] - mean) / stdv;
+                    sum += diff * diff;
+                }
+                if (sum == sum) { // NaN for a flat shapelet, which never matches either
+                    minimum.push(time, sum);
+                }
+            }
+        }
+
+        if (this.numValues < this.windowLength) {
+            return false;
+        }
+        for (int j = 0; j < this.contents.length; j++) {
+            double bestSum = this.minima[j].isEmpty() ? Double.MAX_VALUE : this.minima[j].min();
+            features[featureOffset + j] = Math.sqrt((1.0 / this.contents[j].length * bestSum));
+        }
+        return true;
+    }
+
+    // position in the ring buffer of the value that arrived at the given time
+    private int ringIndex(long time) {
+        return (int) (time % this.windowLength);
+    }
+
+    // sliding window minimum: the distances still in the window, increasing from head to tail
+    private static class SlidingMinimum {
+        private final long[] times;
+        private final double[] values;
+        private int head;
+        private int size;
+
+        private SlidingMinimum(int capacity) {
+            this.times = new long[capacity];
+            this.values = new double[capacity];
+        }
+
+        private void clear() {
+            this.head = 0;
+            this.size = 0;
+        }
+
+        private boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        private double min() {
+            return this.values[this.head];
+        }
+
+        // drop the distances of subsequences that end before the given time
+        private void expire(long time) {
+            while (this.size > 0 && this.times[this.head] < time) {
+                this.head = (this.head + 1) % this.times.length;
+                this.size--;
+            }
+        }
+
+        private void push(long time, double value) {
+            // a later subsequence that is at least as close makes the ones before it irrelevant
+            while (this.size > 0 && this.values[(this.head + this.size - 1) % this.values.length] >= value) {
+                this.size--;
+            }
+            int tail = (this.head + this.size) % this.values.length;
+            this.times[tail] = time;
+            this.values[tail] = value;
+            this.size++;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package pers.lxs.shapelet;
+
+import java.util.Arrays;
+
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A set of equal length time series held in one contiguous, row-major double[]. The class values
+ * are kept apart from the series values, together with a dense index of each class value (its
+ * position among the distinct class values in ascending order).
+ *
+ * The values of series i are values[offset(i)] ... values[offset(i) + seriesLength() - 1]. A
+ * TimeSeriesDataset is not modified once built and can be shared by any number of threads.
+ */
+public class TimeSeriesDataset {
+
+    private final double[] values;
+    private final int numSeries;
+    private final int seriesLength;
+    private final double[] classValues;
+    private final double[] classes; // distinct class values, ascending
+    private final int[] classIndices;
+    private final int[] classTotals;
+    private SeriesStatistics statistics;
+    private final long checksum;
+    private DistanceProfile distanceProfile;
+
+    /**
+     *
+     * @param values the values of all series, row-major
+     * @param numSeries the number of series
+     * @param seriesLength the length of every series
+     * @param classValues the class value of each series
+     */
+    public TimeSeriesDataset(double[] values, int numSeries, int seriesLength, double[] classValues) {
+        if (values.length != numSeries * seriesLength || classValues.length != numSeries) {
+            throw new IllegalArgumentException("Expected " + numSeries + " series of length " + seriesLength
+                    + " but got " + values.length + " values and " + classValues.length + " class values");
+        }
+        this.values = values;
+        this.numSeries = numSeries;
+        this.seriesLength = seriesLength;
+        this.classValues = classValues;
+
+        double[] sorted = classValues.clone();
+        Arrays.sort(sorted);
+        int numClasses = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[numClasses++] = sorted[i];
+            }
+        }
+        this.classes = Arrays.copyOf(sorted, numClasses);
+
+        this.classIndices = new int[numSeries];
+        this.classTotals = new int[numClasses];
+        for (int i = 0; i < numSeries; i++) {
+            this.classIndices[i] = Arrays.binarySearch(this.classes, classValues[i]);
+            this.classTotals[this.classIndices[i]]++;
+        }
+
+        long checksum = 1;
+        for (int i = 0; i < values.length; i++) {
+            checksum = 31 * checksum + Double.doubleToLongBits(values[i]);
+        }
+        for (int i = 0; i < numSeries; i++) {
+            checksum = 31 * checksum + Double.doubleToLongBits(classValues[i]);
+        }
+        this.checksum = checksum;
+    }
+
+    /**
+     * Copy the values of a Weka data set once, leaving out the class attribute.
+     *
+     * @param data the data set, with its class index set if it has a class
+     */
+    public TimeSeriesDataset(Instances data) {
+        this(extractValues(data), data.numInstances(), seriesLength(data), extractClassValues(data));
+    }
+
+    /**
+     *
+     * @param instance an instance of a data set
+     * @return the values of the instance with the class value (if any) left out
+     */
+    public static double[] seriesValues(Instance instance) {
+        double[] all = instance.toDoubleArray();
+        int classIndex = instance.classIndex();
+        if (classIndex < 0) {
+            return all;
+        }
+        double[] series = new double[all.length - 1];
+        System.arraycopy(all, 0, series, 0, classIndex);
+        System.arraycopy(all, classIndex + 1, series, classIndex, all.length - classIndex - 1);
+        return series;
+    }
+
+    public int numSeries() {
+        return this.numSeries;
+    }
+
+    public int seriesLength() {
+        return this.seriesLength;
+    }
+
+    /**
+     *
+     * @return the backing array of all series values, not to be modified
+     */
+    public double[] getValues() {
+        return this.values;
+    }
+
+    /**
+     *
+     * @param series index of a series
+     * @return the index of the first value of the series in getValues()
+     */
+    public int offset(int series) {
+        return series * this.seriesLength;
+    }
+
+    /**
+     *
+     * @param series index of a series
+     * @return a copy of the values of the series
+     */
+    public double[] getSeries(int series) {
+        return Arrays.copyOfRange(this.values, offset(series), offset(series) + this.seriesLength);
+    }
+
+    public double getClassValue(int series) {
+        return this.classValues[series];
+    }
+
+    /**
+     *
+     * @param series index of a series
+     * @return the dense index of the class value of the series
+     */
+    public int getClassIndex(int series) {
+        return this.classIndices[series];
+    }
+
+    public int numClasses() {
+        return this.classes.length;
+    }
+
+    /**
+     *
+     * @param classIndex a dense class index
+     * @return the class value it stands for
+     */
+    public double classValueOf(int classIndex) {
+        return this.classes[classIndex];
+    }
+
+    /**
+     *
+     * @param other series of the same length
+     * @return a new data set of the series of this data set followed by those of the other one
+     */
+    public TimeSeriesDataset append(TimeSeriesDataset other) {
+        if (other.seriesLength != this.seriesLength) {
+            throw new IllegalArgumentException("Cannot append series of length " + other.seriesLength
+                    + " to series of length " + this.seriesLength);
+        }
+        double[] allValues = Arrays.copyOf(this.values, this.values.length + other.values.length);
+        System.arraycopy(other.values, 0, allValues, this.values.length, other.values.length);
+        double[] allClassValues = Arrays.copyOf(this.classValues, this.numSeries + other.numSeries);
+        System.arraycopy(other.classValues, 0, allClassValues, this.numSeries, other.numSeries);
+        return new TimeSeriesDataset(allValues, this.numSeries + other.numSeries, this.seriesLength,
+                allClassValues);
+    }
+
+    /**
+     *
+     * @return the number of series of each class, by dense class index
+     */
+    public int[] getClassTotals() {
+        return this.classTotals.clone();
+    }
+
+    /**
+     *
+     * @return a checksum of the series values and class values, the same for data sets that hold the
+     * same series in the same order
+     */
+    public long checksum() {
+        return this.checksum;
+    }
+
+    /**
+     *
+     * @return the window statistics of every series, built on first use
+     */
+    public synchronized SeriesStatistics getStatistics() {
+        if (this.statistics == null) {
+            this.statistics = new SeriesStatistics(this.values, this.numSeries, this.seriesLength);
+        }
+        return this.statistics;
+    }
+
+    /**
+     *
+     * @return the FFT distance profiles of every series, built on first use
+     */
+    public synchronized DistanceProfile getDistanceProfile() {
+        if (this.distanceProfile == null) {
+            this.distanceProfile = new DistanceProfile(this);
+        }
+        return this.distanceProfile;
+    }
+
+    private static int seriesLength(Instances data) {
+        return data.classIndex() < 0 ? data.numAttributes() : data.numAttributes() - 1;
+    }
+
+    private static double[] extractValues(Instances data) {
+        int length = seriesLength(data);
+        double[] values = new double[data.numInstances() * length];
+        for (int i = 0; i < data.numInstances(); i++) {
+            double[] series = seriesValues(data.instance(i));
+            System.arraycopy(series, 0, values, i * length, length);
+        }
+        return values;
+    }
+
+    private static double[] extractClassValues(Instances data) {
+        double[] classValues = new double[data.numInstances()];
+        if (data.classIndex() >= 0) {
+            for (int i = 0; i < data.numInstances(); i++) {
+                classValues[i] = data.instance(i).classValue();
+            }
+        }
+        return classValues;
+    }
+}
@@ -0,0 +1,137 @@
+package pers.lxs.shapelet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Holds (up to) the k best shapelets seen so far, ordered as by Shapelet.compareTo. Shapelets that
+ * compare as equal are ranked in the order they were added, the same outcome as appending to a list
+ * and stable sorting it.
+ *
+ * The shapelets are kept in a heap with the worst of them at the top, so adding a shapelet costs
+ * O(log k) and never more than k shapelets are held.
+ */
+public class TopKShapelets {
+
+    private final int capacity;
+    private final PriorityQueue<Entry> heap;
+    private long numAdded;
+
+    /**
+     *
+     * @param k the maximum number of shapelets held
+     */
+    public TopKShapelets(int k) {
+        this.capacity = Math.max(1, k);
+        // the heap grows as needed, don't allocate for the whole of a huge k up front
+        this.heap = new PriorityQueue<Entry>(Math.min(this.capacity, 1024), new WorstFirst());
+        this.numAdded = 0;
+    }
+
+    /**
+     *
+     * @param shapelet the shapelet to offer to the store
+     * @return true if the shapelet is now one of the best k
+     */
+    public synchronized boolean add(Shapelet shapelet) {
+        Entry entry = new Entry(shapelet, this.numAdded++);
+        if (this.heap.size() < this.capacity) {
+            this.heap.add(entry);
+            return true;
+        }
+        // a shapelet equal to the worst one was added later, so it ranks below it
+        if (shapelet.compareTo(this.heap.peek().shapelet) < 0) {
+            this.heap.poll();
+            this.heap.add(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @param shapelets the shapelets to offer to the store, in order
+     */
+    public synchronized void addAll(List<Shapelet> shapelets) {
+        for (int i = 0; i < shapelets.size(); i++) {
+            add(shapelets.get(i));
+        }
+    }
+
+    public synchronized int size() {
+        return this.heap.size();
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     *
+     * @return the information gain of the k-th best shapelet, or negative infinity while fewer than
+     * k shapelets are held. A shapelet with a lower gain can no longer become one of the best k.
+     */
+    public synchronized double getKthBestGain() {
+        if (this.heap.size() < this.capacity) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        return this.heap.peek().shapelet.informationGain;
+    }
+
+    /**
+     *
+     * @return the shapelets held, in the order they were added. Adding them in this order to an empty
+     * store gives a store that ranks them, and any shapelet added later, the same way
+     */
+    public synchronized ArrayList<Shapelet> toInsertionOrderList() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(this.heap);
+        Collections.sort(entries, new Comparator<Entry>() {
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o1.sequence, o2.sequence);
+            }
+        });
+        ArrayList<Shapelet> shapelets = new ArrayList<Shapelet>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            shapelets.add(entries.get(i).shapelet);
+        }
+        return shapelets;
+    }
+
+    /**
+     *
+     * @return the shapelets held, best first
+     */
+    public synchronized ArrayList<Shapelet> toSortedList() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(this.heap);
+        Collections.sort(entries, Collections.reverseOrder(new WorstFirst()));
+        ArrayList<Shapelet> shapelets = new ArrayList<Shapelet>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            shapelets.add(entries.get(i).shapelet);
+        }
+        return shapelets;
+    }
+
+    private static class Entry {
+        private final Shapelet shapelet;
+        private final long sequence;
+
+        private Entry(Shapelet shapelet, long sequence) {
+            this.shapelet = shapelet;
+            this.sequence = sequence;
+        }
+    }
+
+    // orders the entries from the worst shapelet to the best one
+    private static class WorstFirst implements Comparator<Entry> {
+        public int compare(Entry o1, Entry o2) {
+            int order = o2.shapelet.compareTo(o1.shapelet);
+            if (order != 0) {
+                return order;
+            }
+            return Long.compare(o2.sequence, o1.sequence);
+        }
+    }
+}
@@ -1,15 +1,28 @@
 package pers.lxs.shapelet.datasetconverter;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-
-import pers.lxs.shapelet.Utils;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author SurpriseLee
@@ -17,6 +30,9 @@ import pers.lxs.shapelet.Utils;
  */
 public class ArffConverter {
 	
+	private static final long DEFAULT_IN_FLIGHT_BYTES = 256L << 20; // source bytes converted at once
+	private static final int MB = 1 << 20;
+	
 	public static void main(String[] args)
 	{
 		ArffConverter converter = new ArffConverter();
@@ -27,7 +43,11 @@ public class ArffConverter {
 		converter.removeFile(new File(srcFile), ".arff");
 			
 		System.out.println("Converting files...");
-		converter.convert(new File(srcFile), 0);	
+		List<File> failed = converter.convert(new File(srcFile), 0, Runtime.getRuntime().availableProcessors());	
+		for(File file : failed)
+		{
+			System.out.println("Not converted: " + file);
+		}
 		
 		System.out.println("Fished!");;
 	}
@@ -40,19 +60,38 @@ public class ArffConverter {
 	 * @return
 	 */
 	public String convertToArff(String relationName, List<double[]> data, int classLabelIndex) {
-		StringBuffer arffBuffer = new StringBuffer();
-		
+		StringWriter arffBuffer = new StringWriter();
+		try {
+			writeArff(relationName, data, classLabelIndex, arffBuffer);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // a StringWriter does not throw
+		}
+		return arffBuffer.toString();
+	}
+	
+	/**
+	 * write data set in arff format to a writer, without building the document in memory
+	 * @param relationName
+	 * @param data
+	 * @param classLabelIndex
+	 * @param out	closed when the document is written
+	 * @throws IOException
+	 */
+	public void writeArff(String relationName, List<double[]> data, int classLabelIndex, Writer out) throws IOException {
 		Set<Double> set = new HashSet<Double>();
 		for(int i = 0; i < data.size(); i++) {
 			set.add(data.get(i)[classLabelIndex]);
 		}
 		
-		String headInfo = getHeadInfo(relationName, data.get(0).length, classLabelIndex, set);
-		arffBuffer.append(headInfo + "\n");
-		String dataContent = getDataContent(data);
-		arffBuffer.append(dataContent + "\n");		
-		
-		return arffBuffer.toString();
+		ArffWriter writer = new ArffWriter(out, relationName, data.get(0).length, classLabelIndex, sortedLabels(set));
+		try {
+			for(int i = 0; i < data.size(); i++) {
+				writer.writeRow(data.get(i));
+			}
+		}
+		finally {
+			writer.close();
+		}
 	}
 	
 	/**
@@ -90,9 +129,11 @@ public class ArffConverter {
 		{
 			if(!filepath.getName().matches(".*.arff"))
 			{
-				String dstFilePath = filepath.getAbsolutePath() + ".arff";
-				File dstFile = new File(dstFilePath);
-				convertSingleFile(filepath, dstFile, classLabelIndex);
+				try {
+					convertSingleFile(filepath, arffFile(filepath), classLabelIndex);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
 			}
 		}
 		else if(filepath.exists() && filepath.isDirectory())
@@ -106,80 +147,203 @@ public class ArffConverter {
 		}		
 	}
 	
+	/**
+	 * convert the files under filepath on numThreads threads, one file per thread at a time
+	 * @param filepath
+	 * @param classLabelIndex
+	 * @param numThreads
+	 * @return the source files that could not be converted
+	 */
+	public List<File> convert(File filepath, int classLabelIndex, int numThreads)
+	{
+		return convert(filepath, classLabelIndex, numThreads, DEFAULT_IN_FLIGHT_BYTES);
+	}
 	
 	/**
-	 * 
+	 * Convert the files under filepath as a batch. The files are queued, largest first, for a pool of
+	 * numThreads threads, and each file is streamed from source to arff. A file is only started once
+	 * the source files being converted add up to no more than maxInFlightBytes with it, a larger file
+	 * is converted on its own, so the reads and the page cache they fill stay bounded however many
+	 * threads there are. A line of progress and throughput is printed as each file is done. A file that
+	 * fails is reported as it happens and returned, the other files are still converted, and only the
+	 * files that were converted count towards the throughput.
+	 * @param filepath
+	 * @param classLabelIndex
+	 * @param numThreads
+	 * @param maxInFlightBytes
+	 * @return the source files that could not be converted
+	 */
+	public List<File> convert(File filepath, final int classLabelIndex, int numThreads, long maxInFlightBytes)
+	{
+		List<File> srcFiles = new ArrayList<File>();
+		listSourceFiles(filepath, srcFiles);
+		File[] queue = srcFiles.toArray(new File[srcFiles.size()]);
+		// the largest files first, so one of them is not left to finish alone at the end
+		Arrays.sort(queue, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.length(), a.length());
+			}
+		});
+		
+		long totalBytes = 0;
+		for(File srcFile : queue)
+		{
+			totalBytes += srcFile.length();
+		}
+		final int numFiles = queue.length;
+		final int permits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / 1024));
+		final Semaphore inFlight = new Semaphore(permits);
+		final AtomicInteger filesDone = new AtomicInteger();
+		final AtomicLong bytesDone = new AtomicLong();
+		final long startTime = System.currentTimeMillis();
+		System.out.println("Converting " + numFiles + " files, " + totalBytes / MB + " MB on " + numThreads + " threads");
+		
+		List<File> failed = new ArrayList<File>();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, numThreads));
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for(final File srcFile : queue)
+			{
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						final long size = srcFile.length();
+						int cost = (int) Math.min(permits, Math.max(1, size / 1024));
+						inFlight.acquireUninterruptibly(cost);
+						try {
+							convertSingleFile(srcFile, arffFile(srcFile), classLabelIndex);
+						} catch (IOException | RuntimeException e) {
+							System.out.println(String.format("[%d/%d] %s: FAILED, %s", filesDone.incrementAndGet(),
+									numFiles, srcFile.getName(), e));
+							throw e;
+						}
+						finally {
+							inFlight.release(cost);
+						}
+						
+						long bytes = bytesDone.addAndGet(size);
+						double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+						System.out.println(String.format("[%d/%d] %s: %.1f MB in %.1f s, %.1f MB/s", filesDone.incrementAndGet(),
+								numFiles, srcFile.getName(), (double) bytes / MB, seconds, bytes / seconds / MB));
+						return null;
+					}
+				}));
+			}
+			for(int i = 0; i < queue.length; i++)
+			{
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					failed.add(queue[i]);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.shutdownNow();
+		}
+		if(!failed.isEmpty())
+		{
+			System.out.println(failed.size() + " of " + numFiles + " files could not be converted");
+		}
+		return failed;
+	}
+	
+	// the arff file a source file is converted to
+	private File arffFile(File srcFile)
+	{
+		return new File(srcFile.getAbsolutePath() + ".arff");
+	}
+	
+	// the files convert(File, int) would convert, in the same order
+	private void listSourceFiles(File filepath, List<File> srcFiles)
+	{
+		if(filepath.exists() && filepath.isFile())
+		{
+			if(!filepath.getName().matches(".*.arff"))
+			{
+				srcFiles.add(filepath);
+			}
+		}
+		else if(filepath.exists() && filepath.isDirectory())
+		{
+			for(File file : filepath.listFiles())
+			{
+				listSourceFiles(file, srcFiles);
+			}
+		}
+	}
+	
+	
+	/**
+	 * The source file is read twice: once for the dimension and the class labels the header needs,
+	 * then again to write each row as it is parsed, so only one row is held in memory.
 	 * @param srcFile
 	 * @param dstFile
+	 * @throws IOException
 	 */
-	private void convertSingleFile(File srcFile, File dstFile, int classLabelIndex)
+	private void convertSingleFile(File srcFile, File dstFile, int classLabelIndex) throws IOException
 	{
+		Set<Double> set = new HashSet<Double>();
+		int dimension = -1;
+		BufferedReader fin = new BufferedReader(new FileReader(srcFile));
 		try {
-			BufferedReader fin = new BufferedReader(new FileReader(srcFile));
-			
 			String line = null;
-			
-			List<double[]> data = new ArrayList<double[]>();
-			
 			while ((line = fin.readLine()) != null)
 			{
+				// only the class label is parsed here, the row is parsed when it is written
 				String[] arrs = line.trim().split(",");
-				
-				double[] sample = new double[arrs.length];
-				
-				for(int i = 0; i < arrs.length; i++)
-				{
-					sample[i] = Double.parseDouble(arrs[i]);
-				}	
-				data.add(sample);
+				if(dimension < 0) {
+					dimension = arrs.length;
+				}
+				set.add(Double.parseDouble(arrs[classLabelIndex]));
 			}
-			
-			String convertedDataset = convertToArff(dstFile.getName(), data, classLabelIndex);
+		}
+		finally {
 			fin.close();
-			Utils.writeFile(convertedDataset, dstFile.getAbsolutePath());
-
-		} catch (IOException e) {
-			e.printStackTrace();
+		}
+		
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dstFile)), 1 << 16);
+		ArffWriter writer = new ArffWriter(out, dstFile.getName(), dimension, classLabelIndex, sortedLabels(set));
+		fin = new BufferedReader(new FileReader(srcFile));
+		boolean written = false;
+		try {
+			String line = null;
+			while ((line = fin.readLine()) != null)
+			{
+				writer.writeRow(parseLine(line));
+			}
+			written = true;
+		}
+		finally {
+			fin.close();
+			writer.close();
+			if(!written) {
+				dstFile.delete(); // no partial arff file is left behind
+			}
 		}
 	}
 	
-	// generate head info of the arff format file
-	private String getHeadInfo(String relationName, int dimension, int classLabelIndex, Set<Double> set)
+	private double[] parseLine(String line)
 	{
-		StringBuffer headBuffer = new StringBuffer();
-		headBuffer.append("@relation " + relationName + "\r\n\r\n");
+		String[] arrs = line.trim().split(",");
 		
-		double[] array = setToArray(set);
-		bubbleSort(array);
+		double[] sample = new double[arrs.length];
 		
-		System.out.println(arrayToString(array));
-					
-		for(int i = 0; i < dimension; i++)
+		for(int i = 0; i < arrs.length; i++)
 		{
-			if(i == classLabelIndex) {
-				headBuffer.append("@attribute class " + arrayToString(array) + "\r\n");
-			} else {
-				headBuffer.append("@attribute attr-" + i + " numeric\r\n"); 
-			}
-			
-		}		
-		
-		return headBuffer.toString();
+			sample[i] = Double.parseDouble(arrs[i]);
+		}	
+		return sample;
 	}
 	
-	private String getDataContent(List<double[]> data) {
-		StringBuffer buffer = new StringBuffer();
+	// the class labels of the header, ascending
+	private double[] sortedLabels(Set<Double> set)
+	{
+		double[] array = setToArray(set);
+		Arrays.sort(array);
 		
-		buffer.append("@data\r\n");
-		for(int i = 0; i < data.size(); i++) {
-			buffer.append("" + data.get(i)[0]);
-			for(int j = 1; j < data.get(i).length; j++) {
-				buffer.append("," + data.get(i)[j]);
-			}
-			buffer.append("\n");
-		}
-				
-		return buffer.toString();
+		System.out.println(ArffWriter.labelsToString(array));
+		return array;
 	}
 	
 	
@@ -196,37 +360,5 @@ public class ArffConverter {
 		
 		return array;
 	}
-	
-	// bubble sort 
-	private void bubbleSort(double[] array)
-	{
-		for(int i = 0; i < array.length - 1; i++)
-		{
-			for(int j = array.length - 1; j > i; j--)
-			{
-				if(array[j - 1] > array[j])
-				{
-					double temp = array[j];
-					array[j] = array[j - 1];
-					array[j - 1] = temp;
-				}				
-			}
-		}
-	}
-	
-	// convert array to string
-	private String arrayToString(double[] array)
-	{
-		StringBuffer buffer = new StringBuffer();
-		buffer.append("{" + array[0]);
-		
-		for(int i = 1; i < array.length; i++)
-		{
-			buffer.append("," + array[i]);
-		}
-		
-		buffer.append("}");
-		return buffer.toString();
-	}
 
 }
@@ -0,0 +1,85 @@
+package pers.lxs.shapelet.datasetconverter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes an ARFF document row by row to a Writer, so a data set never has to be held in memory as
+ * text. The output is the same, byte for byte, as ArffConverter.convertToArff gives for the same
+ * rows: the header, "@data" and then one line per row with the values as Double.toString writes
+ * them.
+ */
+public class ArffWriter implements Closeable {
+
+	private final Writer out;
+	private final StringBuilder row = new StringBuilder(); // reused for every row
+	private final int dimension;
+
+	/**
+	 * write the header of the document
+	 * @param out	where the document is written, wrap it in a BufferedWriter for speed
+	 * @param relationName
+	 * @param dimension	number of values of each row, the class label included
+	 * @param classLabelIndex	index of the class label in each row
+	 * @param classLabels	the distinct class labels of the rows, ascending
+	 * @throws IOException
+	 */
+	public ArffWriter(Writer out, String relationName, int dimension, int classLabelIndex, double[] classLabels)
+			throws IOException {
+		this.out = out;
+		this.dimension = dimension;
+
+		out.write("@relation " + relationName + "\r\n\r\n");
+		String labels = labelsToString(classLabels);
+		for(int i = 0; i < dimension; i++) {
+			if(i == classLabelIndex) {
+				out.write("@attribute class " + labels + "\r\n");
+			} else {
+				out.write("@attribute attr-" + i + " numeric\r\n");
+			}
+		}
+		out.write("\n@data\r\n");
+	}
+
+	/**
+	 * write one row
+	 * @param values	the values of the row, the class label included
+	 * @throws IOException
+	 */
+	public void writeRow(double[] values) throws IOException {
+		if(values.length != this.dimension) {
+			throw new IllegalArgumentException("Expected " + this.dimension + " values but got " + values.length);
+		}
+		this.row.setLength(0);
+		this.row.append(values[0]);
+		for(int j = 1; j < values.length; j++) {
+			this.row.append(',').append(values[j]);
+		}
+		this.row.append('\n');
+		this.out.append(this.row);
+	}
+
+	/**
+	 * end the document and close the underlying writer
+	 */
+	public void close() throws IOException {
+		try {
+			this.out.write("\n");
+		}
+		finally {
+			this.out.close();
+		}
+	}
+
+	// e.g. {1.0,2.0}
+	static String labelsToString(double[] labels) {
+		StringBuilder buffer = new StringBuilder();
+		buffer.append("{").append(labels[0]);
+		for(int i = 1; i < labels.length; i++) {
+			buffer.append(",").append(labels[i]);
+		}
+		buffer.append("}");
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,464 @@
+package pers.lxs.shapelet.datasetconverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import pers.lxs.shapelet.TimeSeriesDataset;
+
+/**
+ * Reads numeric time series from an ARFF file, or a CSV file without header, straight into a
+ * TimeSeriesDataset. The file is memory-mapped and parsed byte by byte, numbers of up to 15
+ * significant digits are converted without creating a String (the fast path of Clinger's
+ * algorithm, which is exact there). A nominal class attribute gets the index of its label as the
+ * class value, as Weka gives it.
+ *
+ * Only dense ARFF data with numeric attributes (besides the class) is supported. Missing values
+ * ('?') are read as NaN.
+ */
+public class TimeSeriesReader {
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final int MAX_FAST_DIGITS = 15; // below 2^53, so the digits are an exact double
+
+	/**
+	 * read a data set on the calling thread
+	 * @param file	ARFF or CSV file
+	 * @param classIndex	index of the class attribute, -1 if there is none
+	 * @return
+	 * @throws IOException
+	 */
+	public static TimeSeriesDataset read(File file, int classIndex) throws IOException {
+		return read(file, classIndex, 1);
+	}
+
+	/**
+	 * read a data set, splitting the data into chunks of whole rows that are parsed in parallel
+	 * @param file	ARFF or CSV file
+	 * @param classIndex	index of the class attribute, -1 if there is none
+	 * @param numThreads	number of chunks parsed at the same time (1 = serial)
+	 * @return
+	 * @throws IOException	if the file cannot be read or is not numeric time series data
+	 */
+	public static TimeSeriesDataset read(File file, int classIndex, int numThreads) throws IOException {
+		MappedByteBuffer buffer = map(file);
+		int size = buffer.capacity();
+
+		List<String[]> labels = new ArrayList<String[]>(); // nominal labels by attribute, null for numeric
+		int dataStart = parseHeader(buffer, labels);
+		int numAttributes = labels.size();
+		if(numAttributes == 0) { // no header, every value of the first row is an attribute
+			numAttributes = countFields(buffer, dataStart);
+			for(int i = 0; i < numAttributes; i++) {
+				labels.add(null);
+			}
+		}
+		if(classIndex >= numAttributes) {
+			throw new IOException("Class index " + classIndex + " but " + file + " has " + numAttributes + " attributes");
+		}
+		for(int i = 0; i < numAttributes; i++) {
+			if(i != classIndex && labels.get(i) != null) {
+				throw new IOException("Attribute " + i + " of " + file + " is nominal, only the class may be");
+			}
+		}
+		HashMap<String, Integer> classLabels = null;
+		if(classIndex >= 0 && labels.get(classIndex) != null) {
+			classLabels = new HashMap<String, Integer>();
+			for(int i = 0; i < labels.get(classIndex).length; i++) {
+				classLabels.put(labels.get(classIndex)[i], i);
+			}
+		}
+
+		// chunks end at line ends, so every row is parsed by exactly one of them
+		int numChunks = Math.max(1, Math.min(numThreads, (size - dataStart) / (1 << 16) + 1));
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		int from = dataStart;
+		for(int c = 1; c <= numChunks && from < size; c++) {
+			int to = c == numChunks ? size : nextLine(buffer, dataStart + (int) ((long) (size - dataStart) * c / numChunks));
+			if(to > from) {
+				chunks.add(new Chunk(buffer.duplicate(), from, to, numAttributes, classIndex, classLabels));
+			}
+			from = to;
+		}
+
+		if(chunks.size() <= 1) {
+			for(Chunk chunk : chunks) {
+				chunk.call();
+			}
+		}
+		else {
+			ExecutorService pool = Executors.newFixedThreadPool(chunks.size());
+			try {
+				for(Future<Chunk> result : pool.invokeAll(chunks)) {
+					result.get();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading " + file, e);
+			}
+			catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Reading " + file + " failed", e.getCause());
+			}
+			finally {
+				pool.shutdown();
+			}
+		}
+
+		int seriesLength = classIndex >= 0 ? numAttributes - 1 : numAttributes;
+		int numSeries = 0;
+		for(Chunk chunk : chunks) {
+			numSeries += chunk.numRows;
+		}
+		double[] values = new double[numSeries * seriesLength];
+		double[] classValues = new double[numSeries];
+		int row = 0;
+		for(Chunk chunk : chunks) {
+			System.arraycopy(chunk.values, 0, values, row * seriesLength, chunk.numRows * seriesLength);
+			System.arraycopy(chunk.classValues, 0, classValues, row, chunk.numRows);
+			row += chunk.numRows;
+		}
+		return new TimeSeriesDataset(values, numSeries, seriesLength, classValues);
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too large to be mapped");
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	// reads the @attribute lines of an ARFF header, returns where the data starts (0 for CSV)
+	private static int parseHeader(ByteBuffer buffer, List<String[]> labels) throws IOException {
+		int pos = 0;
+		int size = buffer.capacity();
+		while(pos < size) {
+			int end = lineEnd(buffer, pos);
+			String line = new String(bytes(buffer, pos, end), StandardCharsets.UTF_8).trim();
+			int next = nextLine(buffer, end);
+			String lower = line.toLowerCase(Locale.ROOT);
+			if(line.isEmpty() || line.startsWith("%") || lower.startsWith("@relation")) {
+				pos = next;
+			}
+			else if(lower.startsWith("@attribute")) {
+				labels.add(attributeLabels(line));
+				pos = next;
+			}
+			else if(lower.startsWith("@data")) {
+				return next;
+			}
+			else if(labels.isEmpty() && !line.startsWith("@")) {
+				return pos; // CSV, the first line is data
+			}
+			else {
+				throw new IOException("Unexpected ARFF header line: " + line);
+			}
+		}
+		return pos;
+	}
+
+	// null for a numeric attribute, the labels for a nominal one
+	private static String[] attributeLabels(String line) throws IOException {
+		int open = line.indexOf('{');
+		if(open < 0) {
+			String[] tokens = line.split("\\s+");
+			String type = tokens[tokens.length - 1].toLowerCase(Locale.ROOT);
+			if(type.equals("numeric") || type.equals("real") || type.equals("integer")) {
+				return null;
+			}
+			throw new IOException("Unsupported attribute: " + line);
+		}
+		String[] labels = line.substring(open + 1, line.lastIndexOf('}')).split(",");
+		for(int i = 0; i < labels.length; i++) {
+			labels[i] = unquote(labels[i].trim());
+		}
+		return labels;
+	}
+
+	private static String unquote(String token) {
+		if(token.length() >= 2 && (token.charAt(0) == '\'' || token.charAt(0) == '"')
+				&& token.charAt(token.length() - 1) == token.charAt(0)) {
+			return token.substring(1, token.length() - 1);
+		}
+		return token;
+	}
+
+	private static int countFields(ByteBuffer buffer, int pos) {
+		int end = lineEnd(buffer, pos);
+		int fields = end > pos ? 1 : 0;
+		for(int i = pos; i < end; i++) {
+			if(buffer.get(i) == ',') {
+				fields++;
+			}
+		}
+		return fields;
+	}
+
+	private static int lineEnd(ByteBuffer buffer, int pos) {
+		while(pos < buffer.capacity() && buffer.get(pos) != '\n' && buffer.get(pos) != '\r') {
+			pos++;
+		}
+		return pos;
+	}
+
+	// the start of the line after the one pos is in
+	private static int nextLine(ByteBuffer buffer, int pos) {
+		pos = lineEnd(buffer, pos);
+		while(pos < buffer.capacity() && (buffer.get(pos) == '\n' || buffer.get(pos) == '\r')) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static byte[] bytes(ByteBuffer buffer, int from, int to) {
+		byte[] bytes = new byte[to - from];
+		for(int i = from; i < to; i++) {
+			bytes[i - from] = buffer.get(i);
+		}
+		return bytes;
+	}
+
+	// parses the rows between two line starts into its own buffers
+	private static class Chunk implements Callable<Chunk> {
+		private final ByteBuffer buffer;
+		private final int to;
+		private final int numAttributes;
+		private final int classIndex;
+		private final HashMap<String, Integer> classLabels;
+		private final int seriesLength;
+		private int pos;
+		private double[] values;
+		private double[] classValues;
+		private int numRows;
+
+		private Chunk(ByteBuffer buffer, int from, int to, int numAttributes, int classIndex,
+				HashMap<String, Integer> classLabels) {
+			this.buffer = buffer;
+			this.pos = from;
+			this.to = to;
+			this.numAttributes = numAttributes;
+			this.classIndex = classIndex;
+			this.classLabels = classLabels;
+			this.seriesLength = classIndex >= 0 ? numAttributes - 1 : numAttributes;
+			this.values = new double[Math.max(1, this.seriesLength) * 64];
+			this.classValues = new double[64];
+		}
+
+		public Chunk call() throws IOException {
+			while(this.pos < this.to) {
+				byte b = this.buffer.get(this.pos);
+				if(b == '\n' || b == '\r' || b == ' ' || b == '\t') {
+					this.pos++;
+				}
+				else if(b == '%') {
+					skipLine();
+				}
+				else if(b == '{') {
+					throw new IOException("Sparse ARFF data is not supported (byte " + this.pos + ")");
+				}
+				else {
+					parseRow();
+				}
+			}
+			return this;
+		}
+
+		private void parseRow() throws IOException {
+			if(this.numRows == this.classValues.length) {
+				this.classValues = Arrays.copyOf(this.classValues, this.numRows * 2);
+				this.values = Arrays.copyOf(this.values, this.numRows * 2 * Math.max(1, this.seriesLength));
+			}
+			int rowStart = this.pos;
+			int v = this.numRows * this.seriesLength;
+			for(int a = 0; a < this.numAttributes; a++) {
+				skipBlanks();
+				if(a == this.classIndex) {
+					this.classValues[this.numRows] = this.classLabels == null ? parseNumber() : parseLabel();
+				}
+				else {
+					this.values[v++] = parseNumber();
+				}
+				skipBlanks();
+				byte b = this.pos < this.to ? this.buffer.get(this.pos) : (byte) '\n';
+				if(a < this.numAttributes - 1 ? b != ',' : b != '\n' && b != '\r') {
+					throw new IOException("Expected " + this.numAttributes + " comma separated values in the row at byte "
+							+ rowStart);
+				}
+				this.pos++;
+			}
+			this.numRows++;
+		}
+
+		private double parseLabel() throws IOException {
+			int start = this.pos;
+			while(this.pos < this.to && !isDelimiter(this.buffer.get(this.pos))) {
+				this.pos++;
+			}
+			String label = unquote(token(start, this.pos).trim());
+			Integer index = this.classLabels.get(label);
+			if(index == null) {
+				throw new IOException("Unknown class label " + label + " at byte " + start);
+			}
+			return index;
+		}
+
+		private double parseNumber() throws IOException {
+			int start = this.pos;
+			boolean negative = false;
+			byte b = current();
+			if(b == '-' || b == '+') {
+				negative = b == '-';
+				b = next();
+			}
+			long mantissa = 0;
+			int digits = 0; // significant digits in the mantissa
+			int exponent = 0;
+			boolean anyDigits = false;
+			boolean exact = true; // false once a non-zero digit had to be dropped
+			while(b >= '0' && b <= '9') {
+				anyDigits = true;
+				if(digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					if(mantissa != 0) {
+						digits++;
+					}
+				}
+				else {
+					exponent++;
+					exact &= b == '0';
+				}
+				b = next();
+			}
+			if(b == '.') {
+				b = next();
+				while(b >= '0' && b <= '9') {
+					anyDigits = true;
+					if(digits < 18) {
+						mantissa = mantissa * 10 + (b - '0');
+						exponent--;
+						if(mantissa != 0) {
+							digits++;
+						}
+					}
+					else {
+						exact &= b == '0';
+					}
+					b = next();
+				}
+			}
+			if(anyDigits && (b == 'e' || b == 'E')) {
+				b = next();
+				boolean negativeExponent = b == '-';
+				if(b == '-' || b == '+') {
+					b = next();
+				}
+				int e = 0;
+				boolean anyExponentDigits = false;
+				while(b >= '0' && b <= '9') {
+					anyExponentDigits = true;
+					e = Math.min(e * 10 + (b - '0'), 100000);
+					b = next();
+				}
+				if(!anyExponentDigits) {
+					return fallback(start);
+				}
+				exponent += negativeExponent ? -e : e;
+			}
+			if(!anyDigits || !isDelimiter(b)) {
+				if(b == '?' && this.pos == start) { // missing value
+					this.pos++;
+					return Double.NaN;
+				}
+				return fallback(start);
+			}
+
+			double value;
+			if(mantissa == 0) {
+				value = 0;
+			}
+			else if(exact && digits <= MAX_FAST_DIGITS && exponent >= -22 && exponent <= 22) {
+				// the mantissa and the power of ten are exact doubles, so one rounding gives the nearest double
+				value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+			}
+			else {
+				return fallback(start);
+			}
+			return negative ? -value : value;
+		}
+
+		// anything the fast path does not handle exactly is left to Double.parseDouble
+		private double fallback(int start) throws IOException {
+			this.pos = start;
+			while(this.pos < this.to && !isDelimiter(this.buffer.get(this.pos))) {
+				this.pos++;
+			}
+			String token = token(start, this.pos).trim();
+			try {
+				return Double.parseDouble(token);
+			}
+			catch (NumberFormatException e) {
+				throw new IOException("Not a number: '" + token + "' at byte " + start);
+			}
+		}
+
+		private byte current() {
+			return this.pos < this.to ? this.buffer.get(this.pos) : (byte) '\n';
+		}
+
+		private byte next() {
+			this.pos++;
+			return current();
+		}
+
+		private static boolean isDelimiter(byte b) {
+			return b == ',' || b == '\n' || b == '\r' || b == ' ' || b == '\t';
+		}
+
+		private void skipBlanks() {
+			while(this.pos < this.to && (this.buffer.get(this.pos) == ' ' || this.buffer.get(this.pos) == '\t')) {
+				this.pos++;
+			}
+		}
+
+		private void skipLine() {
+			while(this.pos < this.to && this.buffer.get(this.pos) != '\n' && this.buffer.get(this.pos) != '\r') {
+				this.pos++;
+			}
+		}
+
+		private String token(int from, int to) {
+			byte[] bytes = new byte[to - from];
+			for(int i = from; i < to; i++) {
+				bytes[i - from] = this.buffer.get(i);
+			}
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package pers.lxs.shapelet.divtopkshapelet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pers.lxs.shapelet.DistanceKernel;
+import pers.lxs.shapelet.Shapelet;
+
+/**
+ * Picks k shapelets that are both good and unlike each other, after DivTopK (Wang et al., 2016).
+ * Two shapelets are similar when the shorter one has a window of the longer one closer than a
+ * threshold, the same length normalised distance the shapelet transform computes. In the similarity
+ * graph of the candidates the best candidate is taken, its neighbours are dropped, and so on until
+ * k shapelets are taken: near identical shapelets of different series, which removeSelfSimilar
+ * keeps, then add one feature to the transform instead of many.
+ *
+ * The graph is never built in full. The candidates are visited best first and a candidate is only
+ * compared to the shapelets taken so far, so at most k edges are looked at per candidate, and an
+ * edge is decided by DistanceKernel.matchesWithin, which abandons every window at the threshold and
+ * stops at the first close window. Screening a candidate thus costs at most k bounded distance
+ * computations, and a candidate similar to a good shapelet is dropped after the first of them that
+ * finds a close window, so tens of thousands of candidates can be screened.
+ */
+public class DiversifiedTopK {
+
+    private final double similarityThreshold;
+    private final int poolFactor;
+    private long comparisons; // edges of the similarity graph decided by the last selection
+
+    /**
+     *
+     * @param similarityThreshold the distance below which two shapelets are similar
+     * @param poolFactor the number of candidates per shapelet to be taken that discovery keeps for
+     * the selection, at least 1
+     */
+    public DiversifiedTopK(double similarityThreshold, int poolFactor) {
+        if (!(similarityThreshold >= 0)) {
+            throw new IllegalArgumentException("Similarity threshold must not be negative, got " + similarityThreshold);
+        }
+        this.similarityThreshold = similarityThreshold;
+        this.poolFactor = Math.max(1, poolFactor);
+    }
+
+    public double getSimilarityThreshold() {
+        return this.similarityThreshold;
+    }
+
+    public int getPoolFactor() {
+        return this.poolFactor;
+    }
+
+    /**
+     *
+     * @param k the number of shapelets to be taken
+     * @return the number of candidates discovery should keep for a selection of k
+     */
+    public int poolSize(int k) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) k * this.poolFactor);
+    }
+
+    /**
+     *
+     * @return the number of pairs of shapelets compared by the last selection
+     */
+    public long getComparisons() {
+        return this.comparisons;
+    }
+
+    /**
+     *
+     * @param candidates the candidates, best first
+     * @param k the number of shapelets to be taken
+     * @return up to k candidates, best first, no two of them similar
+     */
+    public ArrayList<Shapelet> select(List<Shapelet> candidates, int k) {
+        ArrayList<Shapelet> selected = new ArrayList<Shapelet>();
+        ArrayList<int[]> selectedOrders = new ArrayList<int[]>(); // for early abandon, see sortByMagnitude
+        this.comparisons = 0;
+
+        for (int i = 0; i < candidates.size() && selected.size() < k; i++) {
+            Shapelet candidate = candidates.get(i);
+            int[] order = null;
+            boolean similar = false;
+            for (int j = 0; j < selected.size() && !similar; j++) {
+                Shapelet other = selected.get(j);
+                this.comparisons++;
+                if (candidate.content.length <= other.content.length) {
+                    if (order == null) {
+                        order = DistanceKernel.sortByMagnitude(candidate.content);
+                    }
+                    similar = DistanceKernel.matchesWithin(candidate.content, other.content, 0,
+                            other.content.length, this.similarityThreshold, order);
+                }
+                else {
+                    similar = DistanceKernel.matchesWithin(other.content, candidate.content, 0,
+                            candidate.content.length, this.similarityThreshold, selectedOrders.get(j));
+                }
+            }
+            if (!similar) {
+                selected.add(candidate);
+                selectedOrders.add(order != null ? order : DistanceKernel.sortByMagnitude(candidate.content));
+            }
+        }
+        return selected;
+    }
+}
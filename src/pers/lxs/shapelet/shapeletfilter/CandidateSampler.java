@@ -0,0 +1,213 @@
+package pers.lxs.shapelet.shapeletfilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import pers.lxs.shapelet.TimeSeriesDataset;
+
+/**
+ * Draws the candidates (series, length, start) of a data set in a random order without replacement,
+ * for a search that may be stopped before every candidate has been evaluated. No list of the
+ * candidates is built: the candidates are numbered and the numbers are put through a keyed
+ * bijection, so the sampler holds O(number of series) state however large the space.
+ *
+ * In random order every candidate is equally likely to come next. In stratified order the classes
+ * take turns, within a class the series and lengths take turns, and the start of each (series,
+ * length) is drawn at random, so that a small sample covers all of them evenly.
+ */
+class CandidateSampler {
+
+    private final int numLengths;
+    private final int numStarts; // starts of the shortest length, the starts of a longer one are a prefix
+    private final int minShapeletLength;
+    private final int seriesLength;
+    private final long size;
+    private final int[][] strata; // the series of each stratum, in the order they take turns
+    private final int[][] lengthOrders; // the order the lengths take turns in, per stratum
+    private final long[] nextIndex; // the next grid index to draw from, per stratum
+    private final Permutation gridPermutation; // random order: over the whole grid
+    private final Permutation startPermutation; // stratified order: over the starts of one cell
+    private int nextStratum;
+    private long numSampled;
+
+    /**
+     *
+     * @param dataset the data the candidates are taken from
+     * @param minShapeletLength the minimum length of candidates
+     * @param maxShapeletLength the maximum length of candidates
+     * @param stratified true to draw the candidates in stratified order, false for random order
+     * @param seed the seed of the order, the same seed gives the same order
+     */
+    CandidateSampler(TimeSeriesDataset dataset, int minShapeletLength, int maxShapeletLength,
+                     boolean stratified, long seed) {
+        this.minShapeletLength = minShapeletLength;
+        this.seriesLength = dataset.seriesLength();
+        this.numLengths = maxShapeletLength - minShapeletLength + 1;
+        this.numStarts = this.seriesLength - minShapeletLength + 1;
+
+        long perSeries = 0;
+        for (int length = minShapeletLength; length <= maxShapeletLength; length++) {
+            perSeries += this.seriesLength - length + 1;
+        }
+        this.size = perSeries * dataset.numSeries();
+
+        Random random = new Random(seed);
+        if (stratified) {
+            int[] classTotals = dataset.getClassTotals();
+            List<List<Integer>> members = new ArrayList<List<Integer>>();
+            for (int c = 0; c < classTotals.length; c++) {
+                members.add(new ArrayList<Integer>());
+            }
+            for (int i = 0; i < dataset.numSeries(); i++) {
+                members.get(dataset.getClassIndex(i)).add(i);
+            }
+            this.strata = new int[classTotals.length][];
+            this.lengthOrders = new int[classTotals.length][];
+            for (int c = 0; c < classTotals.length; c++) {
+                Collections.shuffle(members.get(c), random);
+                this.strata[c] = toArray(members.get(c));
+                List<Integer> lengths = new ArrayList<Integer>();
+                for (int l = 0; l < this.numLengths; l++) {
+                    lengths.add(l);
+                }
+                Collections.shuffle(lengths, random);
+                this.lengthOrders[c] = toArray(lengths);
+            }
+            this.gridPermutation = null;
+            this.startPermutation = new Permutation(this.numStarts, random.nextLong());
+        }
+        else {
+            int[] all = new int[dataset.numSeries()];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = i;
+            }
+            this.strata = new int[][] { all };
+            this.lengthOrders = null;
+            this.gridPermutation = new Permutation(gridSize(all.length), random.nextLong());
+            this.startPermutation = null;
+        }
+        this.nextIndex = new long[this.strata.length];
+    }
+
+    /**
+     *
+     * @return the number of candidates of the data set
+     */
+    long size() {
+        return this.size;
+    }
+
+    /**
+     *
+     * @return the number of candidates drawn so far
+     */
+    long numSampled() {
+        return this.numSampled;
+    }
+
+    /**
+     * Draw the next candidate.
+     *
+     * @param candidate receives the series, length and start of the candidate
+     * @return false if every candidate has been drawn
+     */
+    boolean next(int[] candidate) {
+        for (int tried = 0; tried < this.strata.length; tried++) {
+            int stratum = this.nextStratum;
+            this.nextStratum = (this.nextStratum + 1) % this.strata.length;
+            if (nextInStratum(stratum, candidate)) {
+                this.numSampled++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the candidates of a stratum are numbered on a grid of series x lengths x starts of the shortest
+    // length, the grid points past the last start of a longer length are skipped
+    private boolean nextInStratum(int stratum, int[] candidate) {
+        int[] series = this.strata[stratum];
+        long gridSize = gridSize(series.length);
+        while (this.nextIndex[stratum] < gridSize) {
+            long index = this.nextIndex[stratum]++;
+            int seriesSlot;
+            int lengthSlot;
+            int start;
+            if (this.gridPermutation != null) {
+                long point = this.gridPermutation.apply(index, 0);
+                start = (int) (point % this.numStarts);
+                point /= this.numStarts;
+                lengthSlot = (int) (point % this.numLengths);
+                seriesSlot = (int) (point / this.numLengths);
+            }
+            else {
+                // series vary fastest, then lengths, so each turn of the stratum moves to another cell
+                seriesSlot = (int) (index % series.length);
+                long round = index / series.length;
+                lengthSlot = this.lengthOrders[stratum][(int) (round % this.numLengths)];
+                long cell = (long) series[seriesSlot] * this.numLengths + lengthSlot;
+                start = (int) this.startPermutation.apply(round / this.numLengths, cell);
+            }
+            int length = this.minShapeletLength + lengthSlot;
+            if (start <= this.seriesLength - length) {
+                candidate[0] = series[seriesSlot];
+                candidate[1] = length;
+                candidate[2] = start;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long gridSize(int numSeries) {
+        return (long) numSeries * this.numLengths * this.numStarts;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    // a keyed bijection on [0, n): a few invertible mixing rounds on the smallest power of two range
+    // that holds n, repeated while the result falls outside [0, n)
+    private static class Permutation {
+        private static final long MULTIPLIER = 0x9e3779b97f4a7c15L; // odd, so invertible mod 2^b
+        private static final int ROUNDS = 3;
+
+        private final long n;
+        private final long mask;
+        private final int shift;
+        private final long seed;
+
+        private Permutation(long n, long seed) {
+            this.n = n;
+            int bits = Math.max(1, 64 - Long.numberOfLeadingZeros(Math.max(1, n - 1)));
+            this.mask = bits == 64 ? -1L : (1L << bits) - 1;
+            this.shift = Math.max(1, bits / 2);
+            this.seed = seed;
+        }
+
+        private long apply(long x, long key) {
+            do {
+                for (int r = 0; r < ROUNDS; r++) {
+                    x = (x * MULTIPLIER) & this.mask;
+                    x ^= x >>> this.shift;
+                    x = (x + mix(this.seed + key * ROUNDS + r)) & this.mask;
+                }
+            } while (x >= this.n);
+            return x;
+        }
+
+        // SplitMix64 finaliser
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package pers.lxs.shapelet.shapeletfilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.TimeSeriesDataset;
+import pers.lxs.shapelet.TopKShapelets;
+
+/**
+ * Periodic snapshots of a discovery run: the index of the next series to search, the shapelets held
+ * by the top-k store in the order they were added and the configuration of the run. Restoring the
+ * store from a snapshot and searching on from that series gives the same shapelets as the run that
+ * wrote it.
+ *
+ * A snapshot is written to a temporary file on a background thread and then moved over the
+ * checkpoint file, so the checkpoint file always holds a complete snapshot.
+ */
+class DiscoveryCheckpoint {
+
+    private static final int MAGIC = 0x53484350; // "SHCP"
+    private static final int VERSION = 2;
+
+    private final File file;
+    private final long intervalMillis;
+    private final int numShapelets;
+    private final int maxStoredShapelets;
+    private final int minShapeletLength;
+    private final int maxShapeletLength;
+    private final int numSeries;
+    private final int seriesLength;
+    private final long dataChecksum;
+    private final String searchSettings;
+    private final ExecutorService writer;
+    private Future<?> pendingWrite;
+    private long lastWrite;
+
+    /**
+     *
+     * @param file the checkpoint file
+     * @param intervalMillis the minimum time between two snapshots
+     * @param numShapelets the number of shapelets searched for
+     * @param maxStoredShapelets the capacity of the top-k store
+     * @param minShapeletLength the minimum length of shapelets
+     * @param maxShapeletLength the maximum length of shapelets
+     * @param dataset the data searched, a checkpoint of other data is not resumed from
+     * @param searchSettings the other settings that decide the shapelets found, a checkpoint written
+     * with other settings is not resumed from
+     */
+    DiscoveryCheckpoint(File file, long intervalMillis, int numShapelets, int maxStoredShapelets,
+                        int minShapeletLength, int maxShapeletLength, TimeSeriesDataset dataset,
+                        String searchSettings) {
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.numShapelets = numShapelets;
+        this.maxStoredShapelets = maxStoredShapelets;
+        this.minShapeletLength = minShapeletLength;
+        this.maxShapeletLength = maxShapeletLength;
+        this.numSeries = dataset.numSeries();
+        this.seriesLength = dataset.seriesLength();
+        this.dataChecksum = dataset.checksum();
+        this.searchSettings = searchSettings;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shapelet-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Fill an empty store from the checkpoint file, if there is one.
+     *
+     * @param store the store of the resumed run
+     * @return the index of the first series still to be searched, 0 if there is no checkpoint
+     * @throws IOException if the checkpoint file cannot be read or was written by a run with a
+     * different configuration or data
+     */
+    int restore(TopKShapelets store) throws IOException {
+        if (!this.file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(this.file + " is not a shapelet discovery checkpoint");
+            }
+            if (in.readInt() != this.numShapelets || in.readInt() != this.maxStoredShapelets
+                    || in.readInt() != this.minShapeletLength || in.readInt() != this.maxShapeletLength
+                    || in.readInt() != this.numSeries || in.readInt() != this.seriesLength
+                    || in.readLong() != this.dataChecksum) {
+                throw new IOException("Checkpoint " + this.file
+                        + " was written by a run with different settings or data - delete it to start afresh");
+            }
+            String settings = in.readUTF();
+            if (!settings.equals(this.searchSettings)) {
+                throw new IOException("Checkpoint " + this.file + " was written by a run with settings [" + settings
+                        + "], this run has [" + this.searchSettings + "] - delete it to start afresh");
+            }
+            int nextSeries = in.readInt();
+            int numStored = in.readInt();
+            for (int i = 0; i < numStored; i++) {
+                store.add(readShapelet(in, this.dataChecksum));
+            }
+            return nextSeries;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Called once the shapelets of a series have been merged into the store. Takes a snapshot if the
+     * interval has passed and the previous snapshot has been written.
+     *
+     * @param nextSeries the index of the next series to search
+     * @param store the store with the shapelets of all series before nextSeries merged
+     */
+    void seriesDone(final int nextSeries, TopKShapelets store) {
+        long now = System.currentTimeMillis();
+        if (now - this.lastWrite < this.intervalMillis
+                || (this.pendingWrite != null && !this.pendingWrite.isDone())) {
+            return;
+        }
+        waitForPendingWrite(); // done already, reports a failed write
+        this.lastWrite = now;
+        // the shapelets are not modified once found, only the list of them has to be copied
+        final ArrayList<Shapelet> shapelets = store.toInsertionOrderList();
+        this.pendingWrite = this.writer.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                write(nextSeries, shapelets);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Wait for the last snapshot to be written and stop the background thread.
+     *
+     * @param completed true if the run finished, its checkpoint file is then deleted
+     * @throws IOException if the checkpoint file of a finished run cannot be deleted
+     */
+    void close(boolean completed) throws IOException {
+        try {
+            waitForPendingWrite();
+        }
+        finally {
+            this.writer.shutdown();
+        }
+        if (completed) {
+            Files.deleteIfExists(this.file.toPath());
+        }
+    }
+
+    // a snapshot that cannot be written does not stop discovery, the last complete one is kept
+    private void waitForPendingWrite() {
+        if (this.pendingWrite == null) {
+            return;
+        }
+        try {
+            this.pendingWrite.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e) {
+            System.out.println("Could not write checkpoint " + this.file + ": " + e.getCause());
+        }
+        this.pendingWrite = null;
+    }
+
+    private void write(int nextSeries, ArrayList<Shapelet> shapelets) throws IOException {
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(this.file.getName(), ".tmp", parent);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.numShapelets);
+            out.writeInt(this.maxStoredShapelets);
+            out.writeInt(this.minShapeletLength);
+            out.writeInt(this.maxShapeletLength);
+            out.writeInt(this.numSeries);
+            out.writeInt(this.seriesLength);
+            out.writeLong(this.dataChecksum);
+            out.writeUTF(this.searchSettings);
+            out.writeInt(nextSeries);
+            out.writeInt(shapelets.size());
+            for (int i = 0; i < shapelets.size(); i++) {
+                writeShapelet(out, shapelets.get(i));
+            }
+        }
+        finally {
+            out.close();
+        }
+        try {
+            Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+    }
+
+    private static void writeShapelet(DataOutputStream out, Shapelet shapelet) throws IOException {
+        out.writeInt(shapelet.seriesId);
+        out.writeInt(shapelet.startPos);
+        out.writeDouble(shapelet.getSplitThreshold());
+        out.writeDouble(shapelet.informationGain);
+        out.writeDouble(shapelet.getSeparationGap());
+        writeArray(out, shapelet.content);
+        out.writeInt(shapelet.rawContent == null ? -1 : shapelet.rawContent.length);
+        if (shapelet.rawContent != null) {
+            for (int i = 0; i < shapelet.rawContent.length; i++) {
+                out.writeDouble(shapelet.rawContent[i]);
+            }
+        }
+        writeArray(out, shapelet.getDistances());
+    }
+
+    private static Shapelet readShapelet(DataInputStream in, long dataChecksum) throws IOException {
+        int seriesId = in.readInt();
+        int startPos = in.readInt();
+        double splitThreshold = in.readDouble();
+        double gain = in.readDouble();
+        double gap = in.readDouble();
+        Shapelet shapelet = new Shapelet(readArray(in), seriesId, startPos, splitThreshold, gain, gap);
+        int rawLength = in.readInt();
+        if (rawLength >= 0) {
+            shapelet.rawContent = new Double[rawLength];
+            for (int i = 0; i < rawLength; i++) {
+                shapelet.rawContent[i] = in.readDouble();
+            }
+        }
+        shapelet.setDistances(readArray(in), dataChecksum);
+        return shapelet;
+    }
+
+    private static void writeArray(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                out.writeDouble(values[i]);
+            }
+        }
+    }
+
+    private static double[] readArray(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+}
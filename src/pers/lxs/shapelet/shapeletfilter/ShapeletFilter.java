@@ -9,16 +9,36 @@ package pers.lxs.shapelet.shapeletfilter;
  * overwrite the output (see "setLogOutputFile(String fileName)" to change file dir and name).
  *
  * To reconstruct a filter from this output, please see the method "createFilterFromFile(String fileName)".
+ * A binary model that also keeps the z-normalised content and fitness of each shapelet can be written with
+ * "setModelFile(String fileName)" and loaded with "createFilterFromModel(String fileName)".
  */
 
 import weka.core.*;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.*;
-
-import pers.lxs.shapelet.OrderLineObj;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import pers.lxs.shapelet.DistanceKernel;
+import pers.lxs.shapelet.DistanceProfile;
+import pers.lxs.shapelet.OrderLine;
+import pers.lxs.shapelet.SeriesStatistics;
 import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletModel;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.SlidingDotProducts;
+import pers.lxs.shapelet.TimeSeriesDataset;
+import pers.lxs.shapelet.TopKShapelets;
+import pers.lxs.shapelet.divtopkshapelet.DiversifiedTopK;
+import pers.lxs.shapelet.shapeletselection.CandidateSelection;
+import pers.lxs.shapelet.shapeletselection.SaxCandidateFilter;
 
 public class ShapeletFilter {
 
@@ -27,8 +47,38 @@ public class ShapeletFilter {
     private int numShapelets;
     private boolean shapeletsTrained;
     private ArrayList<Shapelet> shapelets;
+    private TimeSeriesDataset trainingData; // the series the shapelets were found in
     private String ouputFileLocation = "defaultShapeletOutput.txt"; // default store location
     private boolean recordShapelets = true; // default action is to write an output file
+    private String modelFileLocation; // binary model written after discovery, null = none
+    private int numThreads = 1; // default action is to discover shapelets on the calling thread
+    private ExecutorService executor; // optional caller supplied pool for parallel discovery
+    // keeps rounding in the info gain bound from pruning a candidate that ties with the k-th best
+    private static final double PRUNING_TOLERANCE = 1e-9;
+    private boolean earlyAbandon = true; // abandon distance calculations that cannot be the best match
+    private boolean candidateReordering = false; // compare candidate values in order of magnitude
+    private boolean entropyPruning = false; // abandon candidates that cannot reach the best k
+    private int pruningChecks = 8; // number of times the info gain bound is checked per candidate
+    private volatile double kthBestGain; // gain of the k-th best shapelet so far, the pruning threshold
+    private int maxStoredShapelets = Integer.MAX_VALUE; // memory cap on the number of shapelets kept
+    private int fftLengthThreshold = Integer.MAX_VALUE; // candidates at least this long use FFT distance profiles
+    private boolean dotProductReuse = false; // slide the dot products of one candidate to the next
+    private String checkpointFile; // where discovery progress is saved, null = not saved
+    private long checkpointInterval = 60000; // minimum milliseconds between two checkpoints
+    // candidates held per shapelet searched for by a sampled search, self similar ones are removed at the end
+    private static final int SAMPLING_POOL_FACTOR = 16;
+    private long timeBudget = 0; // milliseconds a sampled search may take, 0 = no limit
+    private long candidateBudget = 0; // candidates a sampled search may evaluate, 0 = no limit
+    private boolean stratifiedSampling = false; // classes, series and lengths take turns in a sample
+    private long samplingSeed = 0;
+    private volatile boolean stopRequested;
+    private volatile TopKShapelets samplingPool; // best candidates of the running sampled search
+    private volatile double exploredFraction;
+    private SaxCandidateFilter candidateFilter; // pre-selects the candidates evaluated, null = all of them
+    private CandidateSelection candidateSelection; // the candidates selected for the running search
+    private DiversifiedTopK diversifiedTopK; // picks k dissimilar shapelets from a pool, null = the k best
+    private final AtomicLong candidatesEvaluated = new AtomicLong();
+    private final AtomicLong candidatesPruned = new AtomicLong();
 
     public ShapeletFilter() {
         this.minShapeletLength = -1;
@@ -180,6 +230,238 @@ public class ShapeletFilter {
         this.recordShapelets = false;
     }
 
+    /**
+     * Also write the shapelets found to a binary model file (see ShapeletModel), which keeps their
+     * content and fitness and is loaded by createFilterFromModel(String fileName) without parsing.
+     *
+     * @param fileName - the model file (null = no model file)
+     */
+    public void setModelFile(String fileName) {
+        this.modelFileLocation = fileName;
+    }
+
+    /**
+     * Evaluate the candidates of different series concurrently. The per-series results are merged
+     * in series order, so the shapelets found are identical to those of a single threaded run.
+     *
+     * @param numThreads - the number of worker threads used in discovery (1 = serial)
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     *
+     * @param earlyAbandon - stop calculating the distance of a window as soon as it is worse than the
+     * best window so far (the distances are unchanged)
+     */
+    public void setEarlyAbandon(boolean earlyAbandon) {
+        this.earlyAbandon = earlyAbandon;
+    }
+
+    /**
+     *
+     * @param candidateReordering - when early abandoning, compare the values of a candidate in
+     * descending order of their absolute z-value so that bad windows are abandoned sooner
+     */
+    public void setCandidateReordering(boolean candidateReordering) {
+        this.candidateReordering = candidateReordering;
+    }
+
+    /**
+     * Limit the number of shapelets held during discovery, e.g. when k is Integer.MAX_VALUE. If the
+     * cap is below k only the best maxStoredShapelets shapelets are returned.
+     *
+     * @param maxStoredShapelets - the maximum number of shapelets held at any time
+     */
+    public void setMaxStoredShapelets(int maxStoredShapelets) {
+        this.maxStoredShapelets = Math.max(1, maxStoredShapelets);
+    }
+
+    /**
+     * Once k shapelets have been found, a candidate is abandoned as soon as an optimistic bound of its
+     * information gain falls below the gain of the k-th best shapelet. Only candidates that could not
+     * have been among the best k are abandoned, so the shapelets found are unchanged.
+     *
+     * @param entropyPruning - turn entropy pruning on or off
+     */
+    public void setEntropyPruning(boolean entropyPruning) {
+        this.entropyPruning = entropyPruning;
+    }
+
+    /**
+     *
+     * @param pruningChecks - how many times, spread evenly over the data set, the info gain bound of a
+     * candidate is checked while its orderline is filled
+     */
+    public void setPruningChecks(int pruningChecks) {
+        this.pruningChecks = Math.max(1, pruningChecks);
+    }
+
+    /**
+     * A candidate of length m costs O(n·m) per series with the sliding window kernel but O(n log n)
+     * with an FFT distance profile, so long candidates are compared by their distance profiles. The
+     * best window of each series is measured again directly, so the distances agree with the default
+     * search unless two windows tie up to rounding. Off by default; around 128 is where the FFT
+     * starts to pay off.
+     *
+     * @param fftLengthThreshold - the candidate length from which FFT distance profiles are used
+     * (Integer.MAX_VALUE = never, the default)
+     */
+    public void setFftLengthThreshold(int fftLengthThreshold) {
+        this.fftLengthThreshold = Math.max(1, fftLengthThreshold);
+    }
+
+    /**
+     * Compute the distances of the candidates of one length and series from dot products that are
+     * updated in O(1) as the candidate slides from one start position to the next (as in STOMP),
+     * instead of from scratch for every candidate. The distances agree up to rounding. This replaces
+     * early abandon and FFT distance profiles, entropy pruning still applies.
+     *
+     * @param dotProductReuse - turn dot product reuse on or off
+     */
+    public void setDotProductReuse(boolean dotProductReuse) {
+        this.dotProductReuse = dotProductReuse;
+    }
+
+    /**
+     * Only evaluate the candidates a SAX pre-filter ranks as the most distinguishing (see
+     * SaxCandidateFilter), in the exhaustive search and in update(Instances). The shapelets found are
+     * those of the selected candidates, which are not always the best of all candidates.
+     *
+     * @param candidateFilter - the pre-filter (null = every candidate is evaluated)
+     */
+    public void setCandidateFilter(SaxCandidateFilter candidateFilter) {
+        this.candidateFilter = candidateFilter;
+    }
+
+    /**
+     * Return k shapelets that are good and unlike each other instead of the k best. Discovery keeps
+     * the pool factor times k best shapelets, and the selector then takes them greedily in order of
+     * fitness, skipping every shapelet similar to one already taken (see DiversifiedTopK).
+     *
+     * @param diversifiedTopK - the selector (null = the k best shapelets are returned)
+     */
+    public void setDiversifiedTopK(DiversifiedTopK diversifiedTopK) {
+        this.diversifiedTopK = diversifiedTopK;
+    }
+
+    /**
+     * Save the progress of discovery to a file from time to time. A run that finds the file resumes
+     * from it, as long as it searches the same data with the same k, length range and search settings
+     * (see searchSettings), and finds the same shapelets as an uninterrupted run. The file is deleted when discovery completes.
+     *
+     * @param fileName - the checkpoint file (null = no checkpoints)
+     */
+    public void setCheckpointFile(String fileName) {
+        this.checkpointFile = fileName;
+    }
+
+    /**
+     *
+     * @param checkpointInterval - the minimum time in milliseconds between two checkpoints
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = Math.max(0, checkpointInterval);
+    }
+
+    /**
+     * Sample the candidates in random order instead of evaluating all of them, and stop when the time
+     * is up. The best shapelets among the candidates evaluated are returned, see stop() and
+     * getExploredFraction(). A sampled search runs on the calling thread and takes no checkpoints.
+     *
+     * @param timeBudget - the time in milliseconds discovery may take (0 = no time limit)
+     */
+    public void setTimeBudget(long timeBudget) {
+        this.timeBudget = Math.max(0, timeBudget);
+    }
+
+    /**
+     * Sample the candidates in random order instead of evaluating all of them, and stop after the
+     * given number of candidates. Can be combined with a time budget, the first one used up ends the
+     * search.
+     *
+     * @param candidateBudget - the number of candidates evaluated (0 = no limit)
+     */
+    public void setCandidateBudget(long candidateBudget) {
+        this.candidateBudget = Math.max(0, candidateBudget);
+    }
+
+    /**
+     *
+     * @param stratifiedSampling - draw the candidates of a sampled search so that the classes, the series
+     * of a class and the lengths take turns, rather than uniformly at random
+     */
+    public void setStratifiedSampling(boolean stratifiedSampling) {
+        this.stratifiedSampling = stratifiedSampling;
+    }
+
+    /**
+     *
+     * @param samplingSeed - the seed of the order of a sampled search, the same seed and candidate
+     * budget give the same shapelets
+     */
+    public void setSamplingSeed(long samplingSeed) {
+        this.samplingSeed = samplingSeed;
+    }
+
+    /**
+     * End the running sampled search, from another thread. process() then returns the best shapelets
+     * found so far.
+     */
+    public void stop() {
+        this.stopRequested = true;
+    }
+
+    /**
+     *
+     * @return the best shapelets of the running or last sampled search so far, in order of their
+     * fitness, with self similar shapelets removed
+     */
+    public ArrayList<Shapelet> getBestSoFar() {
+        TopKShapelets pool = this.samplingPool;
+        if (pool == null) {
+            return new ArrayList<Shapelet>();
+        }
+        return bestOfPool(pool, this.numShapelets);
+    }
+
+    /**
+     *
+     * @return the fraction of all candidates that the running or last discovery run has evaluated or
+     * pruned, 1 once an exhaustive search completes
+     */
+    public double getExploredFraction() {
+        return this.exploredFraction;
+    }
+
+    /**
+     *
+     * @return the number of candidates evaluated by the last discovery run
+     */
+    public long getCandidatesEvaluated() {
+        return this.candidatesEvaluated.get();
+    }
+
+    /**
+     *
+     * @return the number of candidates of the last discovery run abandoned by entropy pruning
+     */
+    public long getCandidatesPruned() {
+        return this.candidatesPruned.get();
+    }
+
+    /**
+     * Use an existing pool for parallel discovery and transform(Instances) instead of creating one
+     * per run. The pool is not shut down by the filter.
+     *
+     * @param executor - the pool the per-series discovery tasks and the transform blocks are submitted
+     * to (null = none)
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
     /**
      *
      * @param numShapelets - the target number of shapelets to generate
@@ -193,12 +475,9 @@ public class ShapeletFilter {
                                                         int minShapeletLength, int maxShapeletLength) throws Exception {
 
         long startTime = System.nanoTime();
-        Double[] rawContent;
 
-        ArrayList<Shapelet> kShapelets = new ArrayList<Shapelet>(); // store (upto) the best k shapelets
-        // overall
-        ArrayList<Shapelet> seriesShapelets = new ArrayList<Shapelet>(); // temp store of all shapelets
-        // for each time series
+        TopKShapelets kBestSoFar = new TopKShapelets(Math.min(storeSize(numShapelets), this.maxStoredShapelets)); // store
+        // (upto) the best k shapelets overall
 
     /*
      * new version to allow caching: - for all time series, calculate the gain of all candidates of
@@ -207,54 +486,358 @@ public class ShapeletFilter {
      * integrate into store of k best
      */
 
-        TreeMap<Double, Integer> classDistributions = getClassDistributions(data); // used to calc info
-        // gain
+        // copy the series out of the Instances once, with the class values held apart. The dataset and
+        // its window statistics are shared by all workers
+        TimeSeriesDataset dataset = new TimeSeriesDataset(data);
+        this.kthBestGain = Double.NEGATIVE_INFINITY; // no pruning until k shapelets have been found
+        this.candidatesEvaluated.set(0);
+        this.candidatesPruned.set(0);
+        this.exploredFraction = 0;
+
+        if (this.timeBudget > 0 || this.candidateBudget > 0) {
+            ArrayList<Shapelet> kShapelets = sampleShapelets(numShapelets, dataset, minShapeletLength,
+                    maxShapeletLength);
+            attachDistances(kShapelets, dataset);
+            this.trainingData = dataset;
+            recordShapelets(kShapelets);
+            return kShapelets;
+        }
 
+        DiscoveryCheckpoint checkpoint = null;
+        int fromSeries = 0;
+        if (this.checkpointFile != null) {
+            checkpoint = new DiscoveryCheckpoint(new File(this.checkpointFile), this.checkpointInterval,
+                    numShapelets, kBestSoFar.getCapacity(), minShapeletLength, maxShapeletLength, dataset,
+                    searchSettings());
+            fromSeries = checkpoint.restore(kBestSoFar);
+            this.kthBestGain = kBestSoFar.getKthBestGain();
+            if (fromSeries > 0) {
+                System.out.println("Resuming from checkpoint at instance " + (fromSeries + 1));
+            }
+        }
+
+        this.candidateSelection = selectCandidates(dataset, minShapeletLength, maxShapeletLength);
         // for all time series
         System.out.println("Processing data: ");
-        int numInstances = data.numInstances();
-        for (int i = 0; i < numInstances; i++) {
+        try {
+            searchSeries(dataset, fromSeries, kBestSoFar, minShapeletLength, maxShapeletLength, checkpoint);
+        }
+        catch (Exception e) {
+            if (checkpoint != null) {
+                checkpoint.close(false);
+            }
+            throw e;
+        }
+        if (checkpoint != null) {
+            checkpoint.close(true);
+        }
+        this.exploredFraction = 1;
+        ArrayList<Shapelet> kShapelets = diversify(kBestSoFar.toSortedList(), numShapelets);
+        attachDistances(kShapelets, dataset);
+        this.trainingData = dataset; // kept so that series can be added later
+        recordShapelets(kShapelets);
+        return kShapelets;
+    }
 
-            if (i == 0 || i % (numInstances / 4) == 0) {
-                System.out.println("Currently processing instance " + (i + 1) + " of " + numInstances);
+    /**
+     * Evaluate candidates drawn at random until the time or candidate budget is used up, every
+     * candidate has been drawn or stop() is called. The best candidates so far are kept in a pool of
+     * SAMPLING_POOL_FACTOR times k, so that k of them are left once the self similar ones are removed.
+     *
+     * @param numShapelets - the target number of shapelets to generate
+     * @param dataset - the data that the shapelets will be taken from
+     * @param minShapeletLength - the minimum length of possible shapelets
+     * @param maxShapeletLength - the maximum length of possible shapelets
+     * @return the best shapelets among the candidates evaluated, in order of their fitness
+     */
+    private ArrayList<Shapelet> sampleShapelets(int numShapelets, TimeSeriesDataset dataset,
+                                                int minShapeletLength, int maxShapeletLength) {
+        long startTime = System.currentTimeMillis();
+        long deadline = this.timeBudget > 0 ? startTime + this.timeBudget : Long.MAX_VALUE;
+        long maxCandidates = this.candidateBudget > 0 ? this.candidateBudget : Long.MAX_VALUE;
+        long poolSize = Math.min(Math.max((long) numShapelets * SAMPLING_POOL_FACTOR, storeSize(numShapelets)),
+                this.maxStoredShapelets);
+        TopKShapelets pool = new TopKShapelets((int) Math.min(poolSize, Integer.MAX_VALUE));
+        CandidateSampler sampler = new CandidateSampler(dataset, minShapeletLength, maxShapeletLength,
+                this.stratifiedSampling, this.samplingSeed);
+        this.samplingPool = pool;
+        this.stopRequested = false;
+
+        double[] values = dataset.getValues();
+        int[] classTotals = dataset.getClassTotals();
+        OrderLine orderline = new OrderLine(dataset.numSeries());
+        OrderLine knownOrderline = new OrderLine(dataset.numSeries());
+        int[] drawn = new int[3]; // series, length, start
+        System.out.println("Sampling from " + sampler.size() + " candidates: ");
+
+        while (!this.stopRequested && sampler.numSampled() < maxCandidates
+                && System.currentTimeMillis() < deadline && sampler.next(drawn)) {
+            int seriesId = drawn[0];
+            int length = drawn[1];
+            int start = drawn[2];
+            int offset = dataset.offset(seriesId);
+            Double[] rawContent = new Double[length + 1];
+            for (int m = 0; m < length; m++) {
+                rawContent[m] = values[offset + start + m];
+            }
+            rawContent[length] = dataset.getClassValue(seriesId);
+            double[] candidate = zNorm(Arrays.copyOfRange(values, offset + start, offset + start + length), false);
+
+            // the pool is only entered by a candidate better than its worst, so that is the pruning threshold
+            Shapelet candidateShapelet = checkCandidate(candidate, dataset, classTotals, seriesId, start,
+                    rawContent, orderline, knownOrderline, null);
+            if (candidateShapelet != null && pool.add(candidateShapelet)) {
+                this.kthBestGain = pool.getKthBestGain();
             }
+            this.exploredFraction = (double) sampler.numSampled() / sampler.size();
+        }
 
-            double[] wholeCandidate = data.instance(i).toDoubleArray();
-            seriesShapelets = new ArrayList<Shapelet>();
-
-            for (int length = minShapeletLength; length <= maxShapeletLength; length++) {
-
-                // for all possible starting positions of that length
-                for (int start = 0; start <= wholeCandidate.length - length - 1; start++) { // -1 = avoid
-                    // classVal -
-                    // handle later
-                    // for series
-                    // with no class
-                    // val
-                    // CANDIDATE ESTABLISHED - got original series, length and starting position
-                    // extract relevant part into a double[] for processing
-                    double[] candidate = new double[length];
-                    rawContent = new Double[length +1];
-                    for (int m = start; m < start + length; m++) {
-                        candidate[m - start] = wholeCandidate[m];
-                        rawContent[m - start] = wholeCandidate[m];
-                    }
+        System.out.println(String.format("Explored %d of %d candidates (%.2f%%) in %.1f s", sampler.numSampled(),
+                sampler.size(), 100 * this.exploredFraction, (System.currentTimeMillis() - startTime) / 1000.0));
+        return bestOfPool(pool, numShapelets);
+    }
 
-                    // znorm candidate here so it's only done once, rather than in each distance calculation
-                    rawContent[length] = data.instance(i).classValue();
-                    candidate = zNorm(candidate, false);
-                    Shapelet candidateShapelet = checkCandidate(candidate, data, i, start, classDistributions,rawContent);
-                    seriesShapelets.add(candidateShapelet);
+    private ArrayList<Shapelet> bestOfPool(TopKShapelets pool, int numShapelets) {
+        return diversify(removeSelfSimilar(pool.toSortedList()), numShapelets);
+    }
+
+    // the settings that decide which shapelets an exhaustive search finds, a checkpoint is only resumed
+    // by a run with the same ones
+    private String searchSettings() {
+        StringBuilder settings = new StringBuilder();
+        settings.append("earlyAbandon=").append(this.earlyAbandon)
+                .append(" candidateReordering=").append(this.candidateReordering)
+                .append(" entropyPruning=").append(this.entropyPruning)
+                .append(" pruningChecks=").append(this.pruningChecks)
+                .append(" fftLengthThreshold=").append(this.fftLengthThreshold)
+                .append(" dotProductReuse=").append(this.dotProductReuse);
+        settings.append(" candidateFilter=");
+        if (this.candidateFilter == null) {
+            settings.append("none");
+        }
+        else {
+            settings.append("sax(keepFraction=").append(this.candidateFilter.getKeepFraction())
+                    .append(" wordLength=").append(this.candidateFilter.getWordLength())
+                    .append(" alphabetSize=").append(this.candidateFilter.getAlphabetSize())
+                    .append(" numRounds=").append(this.candidateFilter.getNumRounds())
+                    .append(" maskedSymbols=").append(this.candidateFilter.getMaskedSymbols())
+                    .append(" seed=").append(this.candidateFilter.getSeed()).append(')');
+        }
+        settings.append(" diversifiedTopK=");
+        if (this.diversifiedTopK == null) {
+            settings.append("none");
+        }
+        else {
+            settings.append("(similarityThreshold=").append(this.diversifiedTopK.getSimilarityThreshold())
+                    .append(" poolFactor=").append(this.diversifiedTopK.getPoolFactor()).append(')');
+        }
+        return settings.toString();
+    }
+
+    // the number of shapelets discovery keeps to return numShapelets of them
+    private int storeSize(int numShapelets) {
+        return this.diversifiedTopK == null ? numShapelets : this.diversifiedTopK.poolSize(numShapelets);
+    }
+
+    private ArrayList<Shapelet> diversify(ArrayList<Shapelet> shapelets, int numShapelets) {
+        if (this.diversifiedTopK != null) {
+            return this.diversifiedTopK.select(shapelets, numShapelets);
+        }
+        if (shapelets.size() > numShapelets) {
+            return new ArrayList<Shapelet>(shapelets.subList(0, numShapelets));
+        }
+        return shapelets;
+    }
+
+    /**
+     * Add labelled series to the data set of a trained filter without repeating the whole discovery.
+     * The shapelets found so far are rescored with their distances to the new series added to those
+     * kept from discovery, and only the candidates of the new series are evaluated, against all
+     * series. The k best of both are kept.
+     *
+     * This is an approximation of a full retrain: a candidate of the earlier series that was not
+     * among the shapelets kept is not evaluated again, even if the new series would raise its gain
+     * into the best k, and the earlier series are not checked for self similarity again.
+     *
+     * @param newData - the new series, in the format of the data the filter was trained on
+     * @return the shapelets of the whole data set in order of their fitness
+     * @throws Exception - if the filter has not been trained by process(Instances) yet
+     */
+    public ArrayList<Shapelet> update(Instances newData) throws Exception {
+        if (this.shapeletsTrained == false || this.trainingData == null) {
+            throw new Exception("ShapeletFilter not trained - call process(Instances) before update(Instances)");
+        }
+        TimeSeriesDataset dataset = this.trainingData.append(new TimeSeriesDataset(newData));
+        int firstNew = this.trainingData.numSeries();
+        TopKShapelets kBestSoFar = new TopKShapelets(Math.min(storeSize(this.numShapelets), this.maxStoredShapelets));
+        this.kthBestGain = Double.NEGATIVE_INFINITY;
+        this.candidatesEvaluated.set(0);
+        this.candidatesPruned.set(0);
+
+        // the distances to the earlier series are unchanged, only those to the new series are needed.
+        // The dense class indices may have changed with the new series, so the orderlines are rebuilt
+        int[] classTotals = dataset.getClassTotals();
+        OrderLine orderline = new OrderLine(dataset.numSeries());
+        double[] values = dataset.getValues();
+        SeriesStatistics statistics = dataset.getStatistics();
+        for (int s = 0; s < this.shapelets.size(); s++) {
+            Shapelet shapelet = this.shapelets.get(s);
+            if (!shapelet.hasDistancesFor(this.trainingData)) {
+                throw new Exception("Shapelet " + s + " holds no distances from discovery, it cannot be rescored");
+            }
+            double[] distances = Arrays.copyOf(shapelet.getDistances(), dataset.numSeries());
+            for (int i = firstNew; i < dataset.numSeries(); i++) {
+                int from = dataset.offset(i);
+                distances[i] = DistanceKernel.earlyAbandonDistance(shapelet.content, values, from,
+                        from + dataset.seriesLength(), null, statistics, i);
+            }
+            orderline.clear();
+            for (int i = 0; i < dataset.numSeries(); i++) {
+                orderline.add(distances[i], dataset.getClassIndex(i));
+            }
+            orderline.sort();
+            shapelet.setDistances(distances, dataset.checksum());
+            shapelet.calcInfoGainAndThreshold(orderline, classTotals);
+            kBestSoFar.add(shapelet);
+        }
+        this.kthBestGain = kBestSoFar.getKthBestGain();
+
+        this.candidateSelection = selectCandidates(dataset, this.minShapeletLength, this.maxShapeletLength);
+        System.out.println("Processing new data: ");
+        searchSeries(dataset, firstNew, kBestSoFar, this.minShapeletLength, this.maxShapeletLength, null);
+        this.shapelets = diversify(kBestSoFar.toSortedList(), this.numShapelets);
+        attachDistances(this.shapelets, dataset); // the shapelets of the new series
+        this.trainingData = dataset;
+        recordShapelets(this.shapelets);
+        return this.shapelets;
+    }
+
+    /**
+     * The shapelet transform of data with the shapelets found, as ShapeletUtils.transform gives it.
+     * The blocks of the feature matrix are computed on the pool set by setExecutor, so repeated
+     * transforms, e.g. after every update(Instances), start no threads; without a pool on
+     * numThreads threads of their own. The distances from discovery are reused for the training data.
+     *
+     * @param data - series in the format of the data the filter was trained on
+     * @return features[i][j] is the distance from shapelet j to instance i
+     * @throws Exception - if the filter has not been trained by process(Instances) yet
+     */
+    public double[][] transform(Instances data) throws Exception {
+        if (this.shapeletsTrained == false || this.shapelets == null) {
+            throw new Exception("ShapeletFilter not trained - call process(Instances) before transform(Instances)");
+        }
+        return transform(this.shapelets, new TimeSeriesDataset(data));
+    }
+
+    private double[][] transform(List<Shapelet> shapelets, TimeSeriesDataset dataset) {
+        if (this.executor != null) {
+            return ShapeletUtils.transform(shapelets, dataset, this.candidateReordering, this.executor);
+        }
+        return ShapeletUtils.transform(shapelets, dataset, this.candidateReordering, this.numThreads);
+    }
+
+    // the distances from the shapelets kept to every series, for update(Instances) and the transform of
+    // the training data. They are computed once for the few shapelets kept, not held by every candidate
+    private void attachDistances(List<Shapelet> shapelets, TimeSeriesDataset dataset) {
+        List<Shapelet> missing = new ArrayList<Shapelet>();
+        for (int j = 0; j < shapelets.size(); j++) {
+            if (!shapelets.get(j).hasDistancesFor(dataset)) {
+                missing.add(shapelets.get(j));
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        double[][] features = transform(missing, dataset);
+        for (int j = 0; j < missing.size(); j++) {
+            double[] distances = new double[dataset.numSeries()];
+            for (int i = 0; i < distances.length; i++) {
+                distances[i] = features[i][j];
+            }
+            missing.get(j).setDistances(distances, dataset.checksum());
+        }
+    }
+
+    /**
+     *
+     * @param dataset - the data that the shapelets will be taken from
+     * @param fromSeries - the index of the first series whose candidates are evaluated
+     * @param kBestSoFar - the store the shapelets of each series are offered to, in series order
+     * @param minShapeletLength - the minimum length of possible shapelets
+     * @param maxShapeletLength - the maximum length of possible shapelets
+     * @param checkpoint - told of every series merged into the store, null for none
+     */
+    private void searchSeries(TimeSeriesDataset dataset, int fromSeries, TopKShapelets kBestSoFar,
+                              int minShapeletLength, int maxShapeletLength,
+                              DiscoveryCheckpoint checkpoint) throws Exception {
+        ArrayList<Shapelet> seriesShapelets; // temp store of all shapelets for each time series
+        int numInstances = dataset.numSeries();
+        ExecutorService pool = this.executor;
+        if (pool == null && this.numThreads > 1) {
+            pool = Executors.newFixedThreadPool(this.numThreads);
+        }
+
+        try {
+            if (pool == null) {
+                for (int i = fromSeries; i < numInstances; i++) {
+                    printProgress(i - fromSeries, numInstances - fromSeries);
+                    seriesShapelets = findSeriesShapelets(dataset, i, minShapeletLength, maxShapeletLength);
+                    kBestSoFar.addAll(seriesShapelets);
+                    this.kthBestGain = kBestSoFar.getKthBestGain();
+                    if (checkpoint != null) {
+                        checkpoint.seriesDone(i + 1, kBestSoFar);
+                    }
                 }
             }
-            // now that we have all shapelets, self similarity can be fairly assessed without fear of
-            // removing potentially
-            // good shapelets
-            Collections.sort(seriesShapelets);
-            seriesShapelets = removeSelfSimilar(seriesShapelets);
-            kShapelets = combine(numShapelets, kShapelets, seriesShapelets);
+            else {
+                // every series is searched independently, the merge below is done in series order
+                // so that ties are broken exactly as in the serial run
+                List<Future<ArrayList<Shapelet>>> results = new ArrayList<Future<ArrayList<Shapelet>>>();
+                for (int i = fromSeries; i < numInstances; i++) {
+                    final int seriesId = i;
+                    results.add(pool.submit(new Callable<ArrayList<Shapelet>>() {
+                        public ArrayList<Shapelet> call() throws Exception {
+                            return findSeriesShapelets(dataset, seriesId, minShapeletLength,
+                                    maxShapeletLength);
+                        }
+                    }));
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    printProgress(i, results.size());
+                    seriesShapelets = getResult(results.get(i));
+                    results.set(i, null); // release the series result once merged
+                    kBestSoFar.addAll(seriesShapelets);
+                    // the k-th best gain never decreases, so a stale value seen by a worker is still a
+                    // safe pruning threshold
+                    this.kthBestGain = kBestSoFar.getKthBestGain();
+                    if (checkpoint != null) {
+                        checkpoint.seriesDone(fromSeries + i + 1, kBestSoFar);
+                    }
+                }
+            }
+        }
+        finally {
+            if (pool != null && pool != this.executor) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private CandidateSelection selectCandidates(TimeSeriesDataset dataset, int minShapeletLength,
+                                                int maxShapeletLength) {
+        if (this.candidateFilter == null) {
+            return null;
         }
+        CandidateSelection selection = this.candidateFilter.select(dataset, minShapeletLength, maxShapeletLength);
+        System.out.println("Pre-filter selected " + selection.numSelected() + " of " + selection.size()
+                + " candidates");
+        return selection;
+    }
 
+    private void recordShapelets(ArrayList<Shapelet> kShapelets) throws IOException {
+        if (this.modelFileLocation != null) {
+            ShapeletModel.write(kShapelets, new File(this.modelFileLocation));
+        }
         if (this.recordShapelets) {
             FileWriter out = new FileWriter(this.ouputFileLocation);
             for (int i = 0; i < kShapelets.size(); i++) {
@@ -277,75 +860,125 @@ public class ShapeletFilter {
             }
             out.close();
         }
+    }
 
-        return kShapelets;
+    private static void printProgress(int i, int numInstances) {
+        if (i == 0 || i % Math.max(1, numInstances / 4) == 0) {
+            System.out.println("Currently processing instance " + (i + 1) + " of " + numInstances);
+        }
+    }
+
+    private static ArrayList<Shapelet> getResult(Future<ArrayList<Shapelet>> result) throws Exception {
+        try {
+            return result.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
     }
 
     /**
      *
-     * @param shapelets the input Shapelets to remove self similar Shapelet objects from
-     * @return a copy of the input ArrayList with self-similar shapelets removed
+     * @param dataset - the data that the shapelets will be taken from
+     * @param seriesId - the index of the series whose candidates are evaluated
+     * @param minShapeletLength - the minimum length of possible shapelets
+     * @param maxShapeletLength - the maximum length of possible shapelets
+     * @return the candidates of the series in order of fitness, with self similar shapelets removed
      */
-    private static ArrayList<Shapelet> removeSelfSimilar(ArrayList<Shapelet> shapelets) {
-        // return a new pruned array list - more efficient than removing
-        // self-similar entries on the fly and constantly reindexing
-        ArrayList<Shapelet> outputShapelets = new ArrayList<Shapelet>();
-        boolean[] selfSimilar = new boolean[shapelets.size()];
-
-        // to keep track of self similarity - assume nothing is similar to begin with
-        for (int i = 0; i < shapelets.size(); i++) {
-            selfSimilar[i] = false;
+    private ArrayList<Shapelet> findSeriesShapelets(TimeSeriesDataset dataset, int seriesId,
+                                                    int minShapeletLength, int maxShapeletLength) {
+        Double[] rawContent;
+        double[] values = dataset.getValues();
+        int offset = dataset.offset(seriesId);
+        int seriesLength = dataset.seriesLength();
+        ArrayList<Shapelet> seriesShapelets = new ArrayList<Shapelet>();
+        // reused for every candidate of the series
+        int[] classTotals = dataset.getClassTotals();
+        OrderLine orderline = new OrderLine(dataset.numSeries());
+        OrderLine knownOrderline = new OrderLine(dataset.numSeries());
+        SlidingDotProducts products = null;
+        if (this.dotProductReuse) {
+            products = new SlidingDotProducts(dataset, seriesId);
         }
 
-        for (int i = 0; i < shapelets.size(); i++) {
-            if (selfSimilar[i] == false) {
-                outputShapelets.add(shapelets.get(i));
-                for (int j = i + 1; j < shapelets.size(); j++) {
-                    if (selfSimilar[j] == false && selfSimilarity(shapelets.get(i), shapelets.get(j))) { // no
-                        // point
-                        // recalc'ing
-                        // if
-                        // already
-                        // self
-                        // similar
-                        // to
-                        // something
-                        selfSimilar[j] = true;
+        for (int length = minShapeletLength; length <= maxShapeletLength; length++) {
+
+            // for all possible starting positions of that length
+            for (int start = 0; start <= seriesLength - length; start++) {
+                if (products != null) {
+                    if (start == 0) {
+                        products.reset(length);
                     }
+                    else {
+                        products.advance();
+                    }
+                }
+                if (this.candidateSelection != null
+                        && !this.candidateSelection.isSelected(seriesId, length, start)) {
+                    continue; // not selected by the pre-filter
+                }
+                // CANDIDATE ESTABLISHED - got original series, length and starting position
+                // extract relevant part into a double[] for processing
+                double[] candidate = new double[length];
+                rawContent = new Double[length +1];
+                for (int m = start; m < start + length; m++) {
+                    candidate[m - start] = values[offset + m];
+                    rawContent[m - start] = values[offset + m];
+                }
+
+                // znorm candidate here so it's only done once, rather than in each distance calculation
+                rawContent[length] = dataset.getClassValue(seriesId);
+                candidate = zNorm(candidate, false);
+                Shapelet candidateShapelet = checkCandidate(candidate, dataset, classTotals, seriesId, start,
+                        rawContent, orderline, knownOrderline, products);
+                if (candidateShapelet != null) { // null if pruned
+                    seriesShapelets.add(candidateShapelet);
                 }
             }
         }
-        return outputShapelets;
+        // now that we have all shapelets, self similarity can be fairly assessed without fear of
+        // removing potentially
+        // good shapelets
+        Collections.sort(seriesShapelets);
+        return removeSelfSimilar(seriesShapelets);
     }
 
     /**
      *
-     * @param k the maximum number of shapelets to be returned after combining the two lists
-     * @param kBestSoFar the (up to) k best shapelets that have been observed so far, passed in to
-     * combine with shapelets from a new series
-     * @param timeSeriesShapelets the shapelets taken from a new series that are to be merged in
-     * descending order of fitness with the kBestSoFar
-     * @return an ordered ArrayList of the best k (or less) Shapelet objects from the union of the
-     * input ArrayLists
+     * @param shapelets the input Shapelets to remove self similar Shapelet objects from
+     * @return a copy of the input ArrayList with self-similar shapelets removed
      */
+    private static ArrayList<Shapelet> removeSelfSimilar(ArrayList<Shapelet> shapelets) {
+        // return a new pruned array list - more efficient than removing
+        // self-similar entries on the fly and constantly reindexing
+        ArrayList<Shapelet> outputShapelets = new ArrayList<Shapelet>();
 
-    // NOTE: could be more efficient here
-    private ArrayList<Shapelet> combine(int k, ArrayList<Shapelet> kBestSoFar,
-                                        ArrayList<Shapelet> timeSeriesShapelets) {
+        // a shapelet is self similar if it overlaps a better shapelet of the same series that has been
+        // kept. The kept shapelets of a series never overlap each other, so they are held as disjoint
+        // intervals (start -> end) and only the one starting last before the end of a shapelet can
+        // overlap it.
+        HashMap<Integer, TreeMap<Integer, Integer>> keptIntervals = new HashMap<Integer, TreeMap<Integer, Integer>>();
 
-        ArrayList<Shapelet> newBestSoFar = new ArrayList<Shapelet>();
-        for (int i = 0; i < timeSeriesShapelets.size(); i++) {
-            kBestSoFar.add(timeSeriesShapelets.get(i));
-        }
-        Collections.sort(kBestSoFar);
-        if (kBestSoFar.size() < k)
-            return kBestSoFar; // no need to return up to k, as there are not k shapelets yet
+        for (int i = 0; i < shapelets.size(); i++) {
+            Shapelet shapelet = shapelets.get(i);
+            TreeMap<Integer, Integer> intervals = keptIntervals.get(shapelet.seriesId);
+            if (intervals == null) {
+                intervals = new TreeMap<Integer, Integer>();
+                keptIntervals.put(shapelet.seriesId, intervals);
+            }
 
-        for (int i = 0; i < k; i++) {
-            newBestSoFar.add(kBestSoFar.get(i));
+            int start = shapelet.startPos;
+            int end = shapelet.startPos + shapelet.content.length;
+            Map.Entry<Integer, Integer> previous = intervals.lowerEntry(end);
+            if (previous == null || previous.getValue() <= start) { // not self similar, keep it
+                outputShapelets.add(shapelet);
+                intervals.put(start, end);
+            }
         }
-
-        return newBestSoFar;
+        return outputShapelets;
     }
 
     /**
@@ -377,51 +1010,85 @@ public class ShapeletFilter {
     /**
      *
      * @param candidate the data from the candidate Shapelet
-     * @param data the entire data set to compare the candidate to
-     * @param data the entire data set to compare the candidate to
-     * @return a TreeMap<Double, Integer> in the form of <Class Value, Frequency>
+     * @param dataset the entire data set to compare the candidate to
+     * @param classTotals the number of series of each class
+     * @param orderline the orderline the distances are collected in, reused between candidates
+     * @param knownOrderline work space for entropy pruning, reused between candidates
+     * @param products the dot products of the candidate with every window, null to compute the
+     * distances from the candidate itself
+     * @return the candidate Shapelet with its info gain, split threshold and separation gap, or null
+     * if the candidate was abandoned by entropy pruning
      */
-    private static Shapelet checkCandidate(double[] candidate, Instances data, int seriesId,
-                                           int startPos, TreeMap classDistribution,Double[] rawContent) {
+    private Shapelet checkCandidate(double[] candidate, TimeSeriesDataset dataset, int[] classTotals,
+                                    int seriesId, int startPos, Double[] rawContent,
+                                    OrderLine orderline, OrderLine knownOrderline,
+                                    SlidingDotProducts products) {
 
         // create orderline by looping through data set and calculating the subsequence
         // distance from candidate to all data, inserting in order.
-        ArrayList<OrderLineObj> orderline = new ArrayList<OrderLineObj>();
+        orderline.clear();
+        int[] order = null;
+        DistanceProfile.Query query = null;
+        if (products == null && candidate.length >= this.fftLengthThreshold) {
+            query = dataset.getDistanceProfile().query(candidate);
+        }
+        else if (products == null && this.earlyAbandon && this.candidateReordering) {
+            order = DistanceKernel.sortByMagnitude(candidate);
+        }
 
-        for (int i = 0; i < data.numInstances(); i++) {
-            double distance = subsequenceDistance(candidate, data.instance(i));
-            double classVal = data.instance(i).classValue();
+        this.candidatesEvaluated.incrementAndGet();
+        double pruningThreshold = this.kthBestGain - PRUNING_TOLERANCE;
+        boolean pruning = this.entropyPruning && pruningThreshold > Double.NEGATIVE_INFINITY
+                && Shapelet.canBoundInfoGain(classTotals.length);
+        int numInstances = dataset.numSeries();
+        double[] values = dataset.getValues();
+        int seriesLength = dataset.seriesLength();
+        SeriesStatistics statistics = dataset.getStatistics();
+        int checkInterval = Math.max(1, numInstances / (this.pruningChecks + 1));
+        int known = 0; // instances already merged into knownOrderline
+        knownOrderline.clear();
+
+        for (int i = 0; i < numInstances; i++) {
+            int from = dataset.offset(i);
+            double distance;
+            if (products != null) {
+                distance = products.subsequenceDistance(i);
+            }
+            else if (query != null) {
+                distance = query.subsequenceDistance(i);
+            }
+            else if (this.earlyAbandon) {
+                distance = DistanceKernel.earlyAbandonDistance(candidate, values, from, from + seriesLength,
+                        order, statistics, i);
+            }
+            else {
+                distance = DistanceKernel.subsequenceDistance(candidate, values, from, from + seriesLength,
+                        statistics, i);
+            }
 
             // without early abandon, it is faster to just add and sort at the end
-            orderline.add(new OrderLineObj(distance, classVal));
+            orderline.add(distance, dataset.getClassIndex(i));
+
+            if (pruning && (i + 1) % checkInterval == 0 && i + 1 < numInstances) {
+                knownOrderline.insertSorted(orderline, known, i + 1);
+                known = i + 1;
+                if (Shapelet.calcInfoGainUpperBound(knownOrderline, classTotals) < pruningThreshold) {
+                    this.candidatesPruned.incrementAndGet();
+                    return null;
+                }
+            }
         }
-        Collections.sort(orderline, new orderLineComparator());
+        orderline.sort();
 
         // create a shapelet object to store all necessary info, i.e.
         // content, seriesId, then calc info gain, plit threshold and separation gap
         Shapelet shapelet = new Shapelet(candidate, seriesId, startPos);
         shapelet.rawContent = rawContent;
-        shapelet.calcInfoGainAndThreshold(orderline, classDistribution);
-
-        // note: early abandon entropy pruning would appear here, but has been ommitted
-        // in favour of a clear multi-class information gain calculation. Could be added in
-        // this method in the future for speed up, but distance early abandon is more important
+        shapelet.calcInfoGainAndThreshold(orderline, classTotals);
 
         return shapelet;
     }
 
-    // for sorting the orderline
-    private static class orderLineComparator implements Comparator<OrderLineObj> {
-        public int compare(OrderLineObj o1, OrderLineObj o2) {
-            if (o1.distance < o2.distance)
-                return -1;
-            else if (o1.distance > o2.distance)
-                return 1;
-            else
-                return 0;
-        }
-    }
-
     /**
      *
      * @param candidate
@@ -429,34 +1096,31 @@ public class ShapeletFilter {
      * @return
      */
     public static double subsequenceDistance(double[] candidate, Instance timeSeriesIns) {
-        double[] timeSeries = timeSeriesIns.toDoubleArray();
-        return subsequenceDistance(candidate, timeSeries);
+        double[] timeSeries = TimeSeriesDataset.seriesValues(timeSeriesIns); // class value left out
+        return DistanceKernel.subsequenceDistance(candidate, timeSeries, 0, timeSeries.length);
     }
 
-    public static double subsequenceDistance(double[] candidate, double[] timeSeries) {
-
-        double bestSum = Double.MAX_VALUE;
-        double sum = 0;
-        double[] subseq;
-
-        // for all possible subsequences of two
-        for (int i = 0; i <= timeSeries.length - candidate.length - 1; i++) {
-            sum = 0;
-            // get subsequence of two that is the same lenght as one
-            subseq = new double[candidate.length];
+    /**
+     *
+     * @param candidate - the z-normalised candidate
+     * @param timeSeriesIns - the series to compare the candidate to
+     * @param order - the order in which candidate values are compared, null for first to last
+     * @return the same distance as subsequenceDistance, with hopeless windows abandoned early
+     */
+    public static double earlyAbandonDistance(double[] candidate, Instance timeSeriesIns, int[] order) {
+        double[] timeSeries = TimeSeriesDataset.seriesValues(timeSeriesIns);
+        return DistanceKernel.earlyAbandonDistance(candidate, timeSeries, 0, timeSeries.length, order);
+    }
 
-            for (int j = i; j < i + candidate.length; j++) {
-                subseq[j - i] = timeSeries[j];
-            }
-            subseq = zNorm(subseq, false); // Z-NORM HERE
-            for (int j = 0; j < candidate.length; j++) {
-                sum += (candidate[j] - subseq[j]) * (candidate[j] - subseq[j]);
-            }
-            if (sum < bestSum) {
-                bestSum = sum;
-            }
-        }
-        return Math.sqrt((1.0 / candidate.length * bestSum));
+    /**
+     *
+     * @param candidate - the z-normalised candidate
+     * @param timeSeries - the values of a series without its class value, as given by
+     * TimeSeriesDataset.seriesValues (not Instance.toDoubleArray)
+     * @return the distance from the candidate to its best matching window of the series
+     */
+    public static double subsequenceDistance(double[] candidate, double[] timeSeries) {
+        return DistanceKernel.subsequenceDistance(candidate, timeSeries, 0, timeSeries.length);
     }
 
     /**
@@ -500,21 +1164,6 @@ public class ShapeletFilter {
         return output;
     }
  
-    private static boolean selfSimilarity(Shapelet shapelet, Shapelet candidate) {
-        if (candidate.seriesId == shapelet.seriesId) {
-            if (candidate.startPos >= shapelet.startPos
-                    && candidate.startPos < shapelet.startPos + shapelet.content.length) { // candidate starts
-                // within exisiting
-                // shapelet
-                return true;
-            }
-            if (shapelet.startPos >= candidate.startPos
-                    && shapelet.startPos < candidate.startPos + candidate.content.length) {
-                return true;
-            }
-        }
-        return false;
-    }
 
 
 
@@ -574,4 +1223,31 @@ public class ShapeletFilter {
         return sf;
     }
 
+    /**
+     *
+     * The shapelets are copied out of the mapped model once, here, as the transform computes its
+     * distances on double arrays.
+     *
+     * @param fileName - a model file written by a filter with setModelFile(String fileName)
+     * @return a trained filter with the shapelets of the model, content and fitness included
+     * @throws Exception - if the file is not a shapelet model
+     */
+    public static ShapeletFilter createFilterFromModel(String fileName) throws Exception {
+        ShapeletModel model = ShapeletModel.load(new File(fileName));
+
+        ShapeletFilter sf = new ShapeletFilter();
+        sf.shapelets = model.toShapelets();
+        sf.shapeletsTrained = true;
+        sf.numShapelets = sf.shapelets.size();
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = 1;
+        for (int i = 0; i < model.numShapelets(); i++) {
+            minLength = Math.min(minLength, model.getLength(i));
+            maxLength = Math.max(maxLength, model.getLength(i));
+        }
+        sf.setShapeletMinAndMax(Math.min(minLength, maxLength), maxLength);
+
+        return sf;
+    }
+
 }
@@ -0,0 +1,81 @@
+package pers.lxs.shapelet.shapeletselection;
+
+import java.util.BitSet;
+
+/**
+ * The candidates (series, length, start) of a data set that are to be evaluated exactly, as chosen
+ * by a pre-filter. A CandidateSelection is not modified once built and can be shared by any number
+ * of threads.
+ */
+public class CandidateSelection {
+
+    private final int minShapeletLength;
+    private final int seriesLength;
+    private final BitSet[] selected; // per length, bit series * numStarts + start
+    private final long size;
+    private long numSelected;
+
+    /**
+     *
+     * @param numSeries the number of series of the data set
+     * @param seriesLength the length of every series
+     * @param minShapeletLength the minimum length of candidates
+     * @param maxShapeletLength the maximum length of candidates
+     */
+    CandidateSelection(int numSeries, int seriesLength, int minShapeletLength, int maxShapeletLength) {
+        this.minShapeletLength = minShapeletLength;
+        this.seriesLength = seriesLength;
+        this.selected = new BitSet[maxShapeletLength - minShapeletLength + 1];
+        long size = 0;
+        for (int l = 0; l < this.selected.length; l++) {
+            int numStarts = seriesLength - (minShapeletLength + l) + 1;
+            this.selected[l] = new BitSet(numSeries * numStarts);
+            size += (long) numSeries * numStarts;
+        }
+        this.size = size;
+    }
+
+    void select(int series, int length, int start) {
+        BitSet bits = this.selected[length - this.minShapeletLength];
+        int bit = series * numStarts(length) + start;
+        if (!bits.get(bit)) {
+            bits.set(bit);
+            this.numSelected++;
+        }
+    }
+
+    /**
+     *
+     * @param series index of the series the candidate is taken from
+     * @param length length of the candidate
+     * @param start start of the candidate in the series
+     * @return true if the candidate is to be evaluated
+     */
+    public boolean isSelected(int series, int length, int start) {
+        int l = length - this.minShapeletLength;
+        if (l < 0 || l >= this.selected.length) {
+            return false;
+        }
+        return this.selected[l].get(series * numStarts(length) + start);
+    }
+
+    /**
+     *
+     * @return the number of candidates selected
+     */
+    public long numSelected() {
+        return this.numSelected;
+    }
+
+    /**
+     *
+     * @return the number of candidates of the data set
+     */
+    public long size() {
+        return this.size;
+    }
+
+    private int numStarts(int length) {
+        return this.seriesLength - length + 1;
+    }
+}
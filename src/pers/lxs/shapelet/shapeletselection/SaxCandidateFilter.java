@@ -0,0 +1,320 @@
+package pers.lxs.shapelet.shapeletselection;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+import pers.lxs.shapelet.SeriesStatistics;
+import pers.lxs.shapelet.TimeSeriesDataset;
+
+/**
+ * Pre-selects the candidates worth an exact evaluation, after Fast Shapelets (Rakthanmanon and
+ * Keogh, 2013). Every candidate is reduced to a SAX word: the PAA of the z-normalised candidate,
+ * each segment mean replaced by the symbol of the Gaussian equiprobable interval it falls in.
+ * Words that differ in a few symbols should still match, so in each of a number of rounds the same
+ * randomly chosen symbols of every word are masked out and the masked words hashed. For each word
+ * and class, the fraction of the series of the class that hold a word colliding with it, averaged
+ * over the rounds, tells how often the word occurs in that class. A word that occurs in some classes
+ * much more than in others is distinguishing.
+ *
+ * The score of a word is the mean absolute deviation of those fractions over the classes. The
+ * candidates of each length are ranked by the score of their word and only the best keepFraction
+ * of them are selected. The score is computed from the words alone, in O(rounds) per candidate, so
+ * the exact distances are only computed for the selected candidates.
+ */
+public class SaxCandidateFilter {
+
+    private static final int BITS_PER_SYMBOL = 4;
+    private static final int MAX_WORD_LENGTH = 64 / BITS_PER_SYMBOL;
+    // the values that cut the standard normal distribution into alphabetSize equiprobable intervals
+    private static final double[][] BREAKPOINTS = {
+            {},
+            {},
+            {0},
+            {-0.43, 0.43},
+            {-0.67, 0, 0.67},
+            {-0.84, -0.25, 0.25, 0.84},
+            {-0.97, -0.43, 0, 0.43, 0.97},
+            {-1.07, -0.57, -0.18, 0.18, 0.57, 1.07},
+            {-1.15, -0.67, -0.32, 0, 0.32, 0.67, 1.15},
+            {-1.22, -0.76, -0.43, -0.14, 0.14, 0.43, 0.76, 1.22},
+            {-1.28, -0.84, -0.52, -0.25, 0, 0.25, 0.52, 0.84, 1.28},
+    };
+
+    private final double keepFraction;
+    private int wordLength = 16;
+    private int alphabetSize = 4;
+    private int numRounds = 10;
+    private int maskedSymbols = 3;
+    private long seed = 0;
+
+    /**
+     *
+     * @param keepFraction the fraction of the candidates of each length that are selected, in (0, 1]
+     */
+    public SaxCandidateFilter(double keepFraction) {
+        if (!(keepFraction > 0 && keepFraction <= 1)) {
+            throw new IllegalArgumentException("Fraction of candidates kept must be in (0, 1], got " + keepFraction);
+        }
+        this.keepFraction = keepFraction;
+    }
+
+    /**
+     *
+     * @param wordLength the number of PAA segments of a word, at most 16. A candidate shorter than
+     * that has one segment per value
+     */
+    public void setWordLength(int wordLength) {
+        if (wordLength < 1 || wordLength > MAX_WORD_LENGTH) {
+            throw new IllegalArgumentException("Word length must be in [1, " + MAX_WORD_LENGTH + "], got " + wordLength);
+        }
+        this.wordLength = wordLength;
+    }
+
+    /**
+     *
+     * @param alphabetSize the number of SAX symbols, in [2, 10]
+     */
+    public void setAlphabetSize(int alphabetSize) {
+        if (alphabetSize < 2 || alphabetSize >= BREAKPOINTS.length) {
+            throw new IllegalArgumentException("Alphabet size must be in [2, " + (BREAKPOINTS.length - 1) + "], got "
+                    + alphabetSize);
+        }
+        this.alphabetSize = alphabetSize;
+    }
+
+    /**
+     *
+     * @param numRounds the number of random maskings the collisions are counted over
+     */
+    public void setNumRounds(int numRounds) {
+        this.numRounds = Math.max(1, numRounds);
+    }
+
+    /**
+     *
+     * @param maskedSymbols the number of symbols of a word masked out in each round, fewer if the word
+     * is too short to keep one symbol
+     */
+    public void setMaskedSymbols(int maskedSymbols) {
+        this.maskedSymbols = Math.max(0, maskedSymbols);
+    }
+
+    /**
+     *
+     * @param seed the seed of the random masks, the same seed gives the same selection
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public double getKeepFraction() {
+        return this.keepFraction;
+    }
+
+    public int getWordLength() {
+        return this.wordLength;
+    }
+
+    public int getAlphabetSize() {
+        return this.alphabetSize;
+    }
+
+    public int getNumRounds() {
+        return this.numRounds;
+    }
+
+    public int getMaskedSymbols() {
+        return this.maskedSymbols;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     *
+     * @param dataset the data the candidates are taken from
+     * @param minShapeletLength the minimum length of candidates
+     * @param maxShapeletLength the maximum length of candidates
+     * @return the candidates selected for exact evaluation
+     */
+    public CandidateSelection select(TimeSeriesDataset dataset, int minShapeletLength, int maxShapeletLength) {
+        int numSeries = dataset.numSeries();
+        int seriesLength = dataset.seriesLength();
+        CandidateSelection selection = new CandidateSelection(numSeries, seriesLength, minShapeletLength,
+                maxShapeletLength);
+        Random random = new Random(this.seed);
+
+        for (int length = minShapeletLength; length <= maxShapeletLength; length++) {
+            int numStarts = seriesLength - length + 1;
+            boolean[] flat = new boolean[numSeries * numStarts];
+            double[] scores = scoreWords(dataset, length, toWords(dataset, length, flat), flat, random);
+
+            int keep = (int) Math.min(scores.length, Math.max(1, Math.ceil(this.keepFraction * scores.length)));
+            double[] sorted = scores.clone();
+            Arrays.sort(sorted);
+            double threshold = sorted[scores.length - keep];
+            // all candidates above the threshold, then a random choice of those on it. Many candidates
+            // share a word, taking the ties in series order would favour the first series
+            int numAbove = 0;
+            int numTied = 0;
+            int[] tied = new int[scores.length];
+            for (int i = 0; i < scores.length; i++) {
+                if (scores[i] > threshold) {
+                    selection.select(i / numStarts, length, i % numStarts);
+                    numAbove++;
+                }
+                else if (scores[i] == threshold) {
+                    tied[numTied++] = i;
+                }
+            }
+            for (int j = 0; j < keep - numAbove; j++) {
+                int pick = j + random.nextInt(numTied - j);
+                int i = tied[pick];
+                tied[pick] = tied[j];
+                selection.select(i / numStarts, length, i % numStarts);
+            }
+        }
+        return selection;
+    }
+
+    // the SAX word of every candidate of the given length, series * numStarts + start
+    private long[] toWords(TimeSeriesDataset dataset, int length, boolean[] flat) {
+        SeriesStatistics statistics = dataset.getStatistics();
+        double[] breakpoints = BREAKPOINTS[this.alphabetSize];
+        int numSegments = Math.min(this.wordLength, length);
+        int numStarts = dataset.seriesLength() - length + 1;
+        long[] words = new long[dataset.numSeries() * numStarts];
+
+        for (int s = 0; s < dataset.numSeries(); s++) {
+            int offset = dataset.offset(s);
+            for (int start = 0; start < numStarts; start++) {
+                int from = offset + start;
+                double stdv = statistics.stdv(s, from, length);
+                if (stdv == 0) { // a flat candidate cannot be z-normalised and never matches
+                    flat[s * numStarts + start] = true;
+                    continue;
+                }
+                double mean = statistics.mean(s, from, length);
+                long word = 0;
+                for (int j = 0; j < numSegments; j++) {
+                    int segmentStart = j * length / numSegments;
+                    int segmentEnd = (j + 1) * length / numSegments;
+                    double paa = (statistics.mean(s, from + segmentStart, segmentEnd - segmentStart) - mean) / stdv;
+                    int symbol = 0;
+                    while (symbol < breakpoints.length && paa >= breakpoints[symbol]) {
+                        symbol++;
+                    }
+                    word = (word << BITS_PER_SYMBOL) | symbol;
+                }
+                words[s * numStarts + start] = word;
+            }
+        }
+        return words;
+    }
+
+    // the score of the word of every candidate, negative infinity for a flat one
+    private double[] scoreWords(TimeSeriesDataset dataset, int length, long[] words, boolean[] flat, Random random) {
+        int numSeries = dataset.numSeries();
+        int numStarts = words.length / Math.max(1, numSeries);
+        int numClasses = dataset.numClasses();
+        int[] classTotals = dataset.getClassTotals();
+        int numSegments = Math.min(this.wordLength, length);
+        int numMasked = Math.min(this.maskedSymbols, numSegments - 1);
+
+        // the distinct words, so that each is scored once however many candidates share it
+        HashMap<Long, Integer> wordIndex = new HashMap<Long, Integer>();
+        int[] candidateWord = new int[words.length];
+        long[] distinct = new long[words.length];
+        for (int i = 0; i < words.length; i++) {
+            if (flat[i]) {
+                candidateWord[i] = -1;
+                continue;
+            }
+            Integer index = wordIndex.get(words[i]);
+            if (index == null) {
+                index = wordIndex.size();
+                wordIndex.put(words[i], index);
+                distinct[index] = words[i];
+            }
+            candidateWord[i] = index;
+        }
+        double[][] collisions = new double[wordIndex.size()][numClasses];
+
+        int[] positions = new int[numSegments];
+        for (int round = 0; round < this.numRounds; round++) {
+            // mask the same randomly chosen symbols of every word
+            for (int j = 0; j < numSegments; j++) {
+                positions[j] = j;
+            }
+            long mask = -1L;
+            for (int j = 0; j < numMasked; j++) {
+                int pick = j + random.nextInt(numSegments - j);
+                int position = positions[pick];
+                positions[pick] = positions[j];
+                positions[j] = position;
+                mask &= ~(((1L << BITS_PER_SYMBOL) - 1) << (BITS_PER_SYMBOL * position));
+            }
+
+            // the number of series of each class that hold each masked word
+            HashMap<Long, Collision> table = new HashMap<Long, Collision>();
+            for (int s = 0; s < numSeries; s++) {
+                int classIndex = dataset.getClassIndex(s);
+                for (int start = 0; start < numStarts; start++) {
+                    int i = s * numStarts + start;
+                    if (candidateWord[i] < 0) {
+                        continue;
+                    }
+                    long masked = words[i] & mask;
+                    Collision collision = table.get(masked);
+                    if (collision == null) {
+                        collision = new Collision(numClasses);
+                        table.put(masked, collision);
+                    }
+                    if (collision.lastSeries != s) {
+                        collision.lastSeries = s;
+                        collision.seriesPerClass[classIndex]++;
+                    }
+                }
+            }
+            for (int w = 0; w < collisions.length; w++) {
+                int[] seriesPerClass = table.get(distinct[w] & mask).seriesPerClass;
+                for (int c = 0; c < numClasses; c++) {
+                    collisions[w][c] += seriesPerClass[c];
+                }
+            }
+        }
+
+        double[] wordScores = new double[collisions.length];
+        double[] fractions = new double[numClasses];
+        for (int w = 0; w < collisions.length; w++) {
+            double total = 0;
+            for (int c = 0; c < numClasses; c++) {
+                fractions[c] = classTotals[c] > 0 ? collisions[w][c] / (this.numRounds * classTotals[c]) : 0;
+                total += fractions[c];
+            }
+            double mean = total / numClasses;
+            double deviation = 0;
+            for (int c = 0; c < numClasses; c++) {
+                deviation += Math.abs(fractions[c] - mean);
+            }
+            wordScores[w] = deviation / numClasses;
+        }
+
+        double[] scores = new double[words.length];
+        for (int i = 0; i < words.length; i++) {
+            scores[i] = candidateWord[i] < 0 ? Double.NEGATIVE_INFINITY : wordScores[candidateWord[i]];
+        }
+        return scores;
+    }
+
+    private static class Collision {
+        private final int[] seriesPerClass;
+        private int lastSeries = -1;
+
+        private Collision(int numClasses) {
+            this.seriesPerClass = new int[numClasses];
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package pers.lxs.shapelet.test;
+
+import java.util.Random;
+
+import pers.lxs.shapelet.DistanceKernel;
+import pers.lxs.shapelet.SeriesStatistics;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.TimeSeriesDataset;
+import weka.core.Instances;
+
+/**
+ * Checks the sliding window distance kernel against the original copy-and-normalise
+ * implementation and compares their throughput. The reference gets each series as its own row
+ * without the class value, the kernel reads the series from the contiguous values of a
+ * TimeSeriesDataset, as discovery does.
+ */
+public class DistanceKernelTest {
+
+	public static void main(String[] args) {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/Coffee_TRAIN.arff";
+		Instances data = ShapeletUtils.loadData(ARFFName);
+		data.setClassIndex(0);
+
+		int numCandidates = 200;
+		Random random = new Random(0);
+		TimeSeriesDataset dataset = new TimeSeriesDataset(data);
+		double[] values = dataset.getValues();
+		SeriesStatistics statistics = dataset.getStatistics();
+		double[][] series = new double[data.numInstances()][];
+		for(int i = 0; i < series.length; i++) {
+			series[i] = TimeSeriesDataset.seriesValues(data.instance(i));
+		}
+
+		double[][] candidates = new double[numCandidates][];
+		for(int c = 0; c < numCandidates; c++) {
+			double[] source = series[random.nextInt(series.length)];
+			int length = 2 + random.nextInt(source.length - 3);
+			int start = random.nextInt(source.length - length);
+			double[] candidate = new double[length];
+			System.arraycopy(source, start, candidate, 0, length);
+			candidates[c] = ShapeletUtils.zNorm(candidate, false);
+		}
+
+		double maxError = 0;
+		double checksum = 0;
+		long referenceTime = 0;
+		long kernelTime = 0;
+		long earlyAbandonTime = 0;
+		for(int c = 0; c < numCandidates; c++) {
+			int[] order = DistanceKernel.sortByMagnitude(candidates[c]);
+			for(int i = 0; i < series.length; i++) {
+				// the reference leaves out the last window, so does the kernel
+				int from = dataset.offset(i);
+				int to = from + dataset.seriesLength() - 1;
+				long start = System.nanoTime();
+				double expected = referenceDistance(candidates[c], series[i]);
+				referenceTime += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				double actual = DistanceKernel.subsequenceDistance(candidates[c], values, from, to);
+				kernelTime += System.nanoTime() - start;
+
+				maxError = Math.max(maxError, Math.abs(expected - actual));
+				checksum += actual;
+
+				actual = DistanceKernel.subsequenceDistance(candidates[c], values, from, to, statistics, i);
+				maxError = Math.max(maxError, Math.abs(expected - actual));
+
+				start = System.nanoTime();
+				actual = DistanceKernel.earlyAbandonDistance(candidates[c], values, from, to, order);
+				earlyAbandonTime += System.nanoTime() - start;
+
+				maxError = Math.max(maxError, Math.abs(expected - actual));
+
+				actual = DistanceKernel.earlyAbandonDistance(candidates[c], values, from, to, order, statistics, i);
+				maxError = Math.max(maxError, Math.abs(expected - actual));
+			}
+		}
+
+		System.out.println("Compared " + numCandidates * series.length + " distances, max absolute error: " + maxError);
+		System.out.println("Reference time (ms): " + referenceTime / 1000000 + ", kernel time (ms): " + kernelTime / 1000000
+				+ ", speed up: " + (double) referenceTime / kernelTime + " (checksum " + checksum + ")");
+		System.out.println("Early abandon time (ms): " + earlyAbandonTime / 1000000
+				+ ", speed up: " + (double) referenceTime / earlyAbandonTime);
+		if(maxError > 1e-6) {
+			System.out.println("FAILED: kernel does not match the reference implementation");
+		}
+	}
+
+	// the original implementation, copies and z-normalises every window
+	private static double referenceDistance(double[] candidate, double[] timeSeries) {
+		double bestSum = Double.MAX_VALUE;
+		double sum = 0;
+		double[] subseq;
+
+		for (int i = 0; i <= timeSeries.length - candidate.length - 1; i++) {
+			sum = 0;
+			subseq = new double[candidate.length];
+
+			for (int j = i; j < i + candidate.length; j++) {
+				subseq[j - i] = timeSeries[j];
+			}
+			subseq = ShapeletUtils.zNorm(subseq, false);
+			for (int j = 0; j < candidate.length; j++) {
+				sum += (candidate[j] - subseq[j]) * (candidate[j] - subseq[j]);
+			}
+			if (sum < bestSum) {
+				bestSum = sum;
+			}
+		}
+		return Math.sqrt((1.0 / candidate.length * bestSum));
+	}
+
+}
@@ -0,0 +1,87 @@
+package pers.lxs.shapelet.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pers.lxs.shapelet.DistanceKernel;
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.divtopkshapelet.DiversifiedTopK;
+import pers.lxs.shapelet.shapeletfilter.ShapeletFilter;
+import weka.core.Instances;
+
+/**
+ * Checks diversified top-k selection against full distance computations on a pool of discovered
+ * shapelets: no two selected shapelets are similar, every candidate passed over is similar to a
+ * better selected one, and with a threshold of 0 the selection is the plain top k.
+ */
+public class DiversifiedTopKTest {
+
+	public static void main(String[] args) throws Exception {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/Coffee_TRAIN.arff";
+		double threshold = args.length > 1 ? Double.parseDouble(args[1]) : 0.5;
+		int k = 10;
+		Instances data = ShapeletUtils.loadData(ARFFName);
+		data.setClassIndex(0);
+
+		ShapeletFilter sf = new ShapeletFilter(1000, 20, 30);
+		sf.turnOffLog();
+		ArrayList<Shapelet> pool = sf.process(data);
+
+		DiversifiedTopK divTopK = new DiversifiedTopK(threshold, 100);
+		long start = System.nanoTime();
+		ArrayList<Shapelet> selected = divTopK.select(pool, k);
+		long selectTime = System.nanoTime() - start;
+
+		int similarPairs = 0;
+		for(int i = 0; i < selected.size(); i++) {
+			for(int j = i + 1; j < selected.size(); j++) {
+				if(distance(selected.get(i), selected.get(j)) < threshold) {
+					similarPairs++;
+				}
+			}
+		}
+		// the candidates before the last one selected that were passed over
+		int skipped = 0;
+		int wronglySkipped = 0;
+		int next = 0;
+		for(int i = 0; i < pool.size() && next < selected.size(); i++) {
+			if(pool.get(i) == selected.get(next)) {
+				next++;
+				continue;
+			}
+			skipped++;
+			boolean similar = false;
+			for(int j = 0; j < next && !similar; j++) {
+				similar = distance(pool.get(i), selected.get(j)) < threshold;
+			}
+			if(!similar) {
+				wronglySkipped++;
+			}
+		}
+		System.out.println("Threshold " + threshold + ": " + selected.size() + " of " + pool.size() + " selected in "
+				+ selectTime / 1000 + " us, " + divTopK.getComparisons() + " comparisons, " + skipped
+				+ " candidates passed over");
+		System.out.println("Similar selected pairs: " + similarPairs + ", passed over but not similar: " + wronglySkipped
+				+ ", out of order: " + (next < selected.size()));
+
+		List<Shapelet> plain = new DiversifiedTopK(0, 100).select(pool, k);
+		boolean plainTopK = plain.equals(pool.subList(0, Math.min(k, pool.size())));
+		System.out.println("Threshold 0 gives the plain top " + k + ": " + plainTopK);
+
+		if(similarPairs > 0 || wronglySkipped > 0 || next < selected.size() || !plainTopK) {
+			System.out.println("FAILED: the selection is not the diversified top k of the pool");
+		}
+	}
+
+	// the distance from the shorter shapelet to its closest window of the longer one
+	private static double distance(Shapelet a, Shapelet b) {
+		if(a.content.length > b.content.length) {
+			Shapelet swap = a;
+			a = b;
+			b = swap;
+		}
+		return DistanceKernel.subsequenceDistance(a.content, b.content, 0, b.content.length);
+	}
+
+}
@@ -0,0 +1,62 @@
+package pers.lxs.shapelet.test;
+
+import java.util.ArrayList;
+
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.shapeletfilter.ShapeletFilter;
+import weka.core.Instances;
+
+/**
+ * Compares shapelet discovery with per-candidate distances against discovery with dot products
+ * reused between adjacent candidates, and checks that both find the same shapelets.
+ */
+public class DotProductReuseBenchmark {
+
+	public static void main(String[] args) {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/Coffee_TRAIN.arff";
+		int minLength = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int maxLength = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+		int k = 50;
+
+		try {
+			Instances data = ShapeletUtils.loadData(ARFFName);
+			data.setClassIndex(0);
+
+			long start = System.currentTimeMillis();
+			ArrayList<Shapelet> expected = discover(data, k, minLength, maxLength, false);
+			long candidateTime = System.currentTimeMillis() - start;
+
+			start = System.currentTimeMillis();
+			ArrayList<Shapelet> actual = discover(data, k, minLength, maxLength, true);
+			long reuseTime = System.currentTimeMillis() - start;
+
+			int mismatches = 0;
+			for(int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+				if(i >= expected.size() || i >= actual.size()
+						|| expected.get(i).seriesId != actual.get(i).seriesId
+						|| expected.get(i).startPos != actual.get(i).startPos
+						|| expected.get(i).content.length != actual.get(i).content.length) {
+					mismatches++;
+				}
+			}
+
+			System.out.println("lengths " + minLength + " to " + maxLength + ", k = " + k);
+			System.out.println("per candidate:     " + candidateTime + " ms");
+			System.out.println("dot product reuse: " + reuseTime + " ms");
+			System.out.println("shapelets that differ: " + mismatches + " of " + expected.size());
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static ArrayList<Shapelet> discover(Instances data, int k, int minLength, int maxLength,
+			boolean dotProductReuse) throws Exception {
+		ShapeletFilter sf = new ShapeletFilter(k, minLength, maxLength);
+		sf.turnOffLog();
+		sf.setDotProductReuse(dotProductReuse);
+		return sf.process(data);
+	}
+
+}
@@ -0,0 +1,78 @@
+package pers.lxs.shapelet.test;
+
+import java.util.ArrayList;
+
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.TimeSeriesDataset;
+import pers.lxs.shapelet.shapeletfilter.ShapeletFilter;
+import pers.lxs.shapelet.shapeletselection.CandidateSelection;
+import pers.lxs.shapelet.shapeletselection.SaxCandidateFilter;
+import weka.core.Instances;
+
+/**
+ * Checks that a SAX pre-filter keeping every candidate selects each of them and leaves discovery
+ * unchanged, and reports what a filter keeping a tenth of the candidates costs in shapelet quality.
+ */
+public class SaxCandidateFilterTest {
+
+	public static void main(String[] args) throws Exception {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/Coffee_TRAIN.arff";
+		int minLength = 20;
+		int maxLength = 30;
+		int k = 10;
+		Instances data = ShapeletUtils.loadData(ARFFName);
+		data.setClassIndex(0);
+		TimeSeriesDataset dataset = new TimeSeriesDataset(data);
+
+		CandidateSelection selection = new SaxCandidateFilter(1).select(dataset, minLength, maxLength);
+		long missing = 0;
+		for(int length = minLength; length <= maxLength; length++) {
+			for(int series = 0; series < dataset.numSeries(); series++) {
+				for(int start = 0; start + length <= dataset.seriesLength(); start++) {
+					if(!selection.isSelected(series, length, start)) {
+						missing++;
+					}
+				}
+			}
+		}
+		System.out.println("keepFraction 1: " + selection.numSelected() + " of " + selection.size()
+				+ " candidates selected, " + missing + " not selected");
+
+		long start = System.currentTimeMillis();
+		ArrayList<Shapelet> expected = discover(data, k, minLength, maxLength, null);
+		long exhaustiveTime = System.currentTimeMillis() - start;
+		ArrayList<Shapelet> keepAll = discover(data, k, minLength, maxLength, new SaxCandidateFilter(1));
+		int mismatches = 0;
+		for(int i = 0; i < Math.max(expected.size(), keepAll.size()); i++) {
+			if(i >= expected.size() || i >= keepAll.size()
+					|| expected.get(i).seriesId != keepAll.get(i).seriesId
+					|| expected.get(i).startPos != keepAll.get(i).startPos
+					|| expected.get(i).content.length != keepAll.get(i).content.length
+					|| expected.get(i).informationGain != keepAll.get(i).informationGain) {
+				mismatches++;
+			}
+		}
+		System.out.println("Discovery with keepFraction 1: " + mismatches + " of " + expected.size()
+				+ " shapelets differ from discovery without a filter");
+
+		start = System.currentTimeMillis();
+		ArrayList<Shapelet> filtered = discover(data, k, minLength, maxLength, new SaxCandidateFilter(0.1));
+		long filteredTime = System.currentTimeMillis() - start;
+		System.out.println("keepFraction 0.1: best gain " + filtered.get(0).informationGain + " (exhaustive "
+				+ expected.get(0).informationGain + "), " + filteredTime + " ms (exhaustive " + exhaustiveTime + " ms)");
+
+		if(missing > 0 || selection.numSelected() != selection.size() || mismatches > 0) {
+			System.out.println("FAILED: keeping every candidate changes discovery");
+		}
+	}
+
+	private static ArrayList<Shapelet> discover(Instances data, int k, int minLength, int maxLength,
+			SaxCandidateFilter candidateFilter) throws Exception {
+		ShapeletFilter sf = new ShapeletFilter(k, minLength, maxLength);
+		sf.turnOffLog();
+		sf.setCandidateFilter(candidateFilter);
+		return sf.process(data);
+	}
+
+}
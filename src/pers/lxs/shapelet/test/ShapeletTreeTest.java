@@ -0,0 +1,89 @@
+package pers.lxs.shapelet.test;
+
+import java.util.ArrayList;
+
+import pers.lxs.shapele.shapelettree.ShapeletTree;
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.shapeletfilter.ShapeletFilter;
+import weka.core.Instances;
+
+/**
+ * Trains a shapelet tree on every other series of a data set and classifies the rest. Checks that
+ * the tree separates its training series, and that a tree trained on several threads tests the same
+ * shapelets and makes the same predictions as one trained serially.
+ */
+public class ShapeletTreeTest {
+
+	public static void main(String[] args) throws Exception {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/Coffee_TRAIN.arff";
+		Instances data = ShapeletUtils.loadData(ARFFName);
+		data.setClassIndex(0);
+
+		Instances train = new Instances(data, 0);
+		Instances test = new Instances(data, 0);
+		for(int i = 0; i < data.numInstances(); i++) {
+			(i % 2 == 0 ? train : test).add(data.instance(i));
+		}
+
+		ShapeletFilter sf = new ShapeletFilter(100, 20, 30);
+		sf.turnOffLog();
+		ArrayList<Shapelet> candidates = sf.process(train);
+
+		ShapeletTree tree = new ShapeletTree();
+		long start = System.nanoTime();
+		tree.train(candidates, train);
+		long trainTime = System.nanoTime() - start;
+
+		ShapeletTree parallelTree = new ShapeletTree();
+		parallelTree.setNumThreads(4);
+		parallelTree.train(candidates, train);
+
+		int trainCorrect = 0;
+		for(int i = 0; i < train.numInstances(); i++) {
+			if(tree.classifyInstance(train.instance(i)) == train.instance(i).classValue()) {
+				trainCorrect++;
+			}
+		}
+		int testCorrect = 0;
+		int disagreements = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < test.numInstances(); i++) {
+			double predicted = tree.classifyInstance(test.instance(i));
+			if(predicted == test.instance(i).classValue()) {
+				testCorrect++;
+			}
+			if(predicted != parallelTree.classifyInstance(test.instance(i))) {
+				disagreements++;
+			}
+		}
+		long classifyTime = System.nanoTime() - start;
+
+		boolean sameShapelets = sameShapelets(tree.getShapelets(), parallelTree.getShapelets());
+		System.out.println(candidates.size() + " candidates, " + tree.numNodes() + " nodes, trained in "
+				+ trainTime / 1000000 + " ms");
+		System.out.println("Training accuracy: " + trainCorrect + "/" + train.numInstances() + ", test accuracy: "
+				+ testCorrect + "/" + test.numInstances() + ", " + classifyTime / 1000 / test.numInstances()
+				+ " us per series on both trees");
+		System.out.println("Parallel tree: same shapelets " + sameShapelets + ", " + disagreements
+				+ " different predictions");
+
+		if(trainCorrect != train.numInstances() || !sameShapelets || disagreements > 0) {
+			System.out.println("FAILED: the tree does not fit its training series or depends on the number of threads");
+		}
+	}
+
+	private static boolean sameShapelets(ArrayList<Shapelet> a, ArrayList<Shapelet> b) {
+		if(a.size() != b.size()) {
+			return false;
+		}
+		for(int i = 0; i < a.size(); i++) {
+			if(a.get(i).seriesId != b.get(i).seriesId || a.get(i).startPos != b.get(i).startPos
+					|| a.get(i).content.length != b.get(i).content.length) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,84 @@
+package pers.lxs.shapelet.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import pers.lxs.shapelet.DistanceKernel;
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.StreamingShapeletTransform;
+import pers.lxs.shapelet.TimeSeriesDataset;
+import pers.lxs.shapelet.shapeletfilter.ShapeletFilter;
+import weka.core.Instances;
+
+/**
+ * Replays the series of a data set as one stream through the streaming shapelet transform, checks
+ * the window features against the batch distance kernel and reports the cost per sample.
+ */
+public class StreamingTransformBenchmark {
+
+	public static void main(String[] args) {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/Coffee_TRAIN.arff";
+		int batchSize = 64;
+
+		try {
+			Instances data = ShapeletUtils.loadData(ARFFName);
+			data.setClassIndex(0);
+			TimeSeriesDataset dataset = new TimeSeriesDataset(data);
+
+			ShapeletFilter sf = new ShapeletFilter(50, 10, 40);
+			sf.turnOffLog();
+			ArrayList<Shapelet> shapelets = sf.process(data);
+
+			// the stream is all series one after the other, replayed a few times
+			int repeats = 20;
+			double[] series = dataset.getValues();
+			double[] stream = new double[series.length * repeats];
+			for(int r = 0; r < repeats; r++) {
+				System.arraycopy(series, 0, stream, r * series.length, series.length);
+			}
+
+			int windowLength = dataset.seriesLength();
+			StreamingShapeletTransform transform = new StreamingShapeletTransform(shapelets, windowLength);
+			double[] features = new double[transform.numFeatures()];
+
+			// one value at a time, checking every 97th window against the kernel
+			double maxError = 0;
+			long start = System.nanoTime();
+			for(int t = 0; t < stream.length; t++) {
+				if(transform.offer(stream[t], features) && t % 97 == 0) {
+					double[] window = Arrays.copyOfRange(stream, t - windowLength + 1, t + 1);
+					for(int j = 0; j < shapelets.size(); j++) {
+						double expected = DistanceKernel.subsequenceDistance(shapelets.get(j).content, window, 0,
+								windowLength);
+						maxError = Math.max(maxError, Math.abs(expected - features[j]));
+					}
+				}
+			}
+			long singleTime = System.nanoTime() - start;
+
+			// micro-batches
+			transform.reset();
+			double[] batchFeatures = new double[batchSize * transform.numFeatures()];
+			long numWindows = 0;
+			start = System.nanoTime();
+			for(int t = 0; t < stream.length; t += batchSize) {
+				numWindows += transform.offer(stream, t, Math.min(t + batchSize, stream.length), batchFeatures);
+			}
+			long batchTime = System.nanoTime() - start;
+
+			System.out.println(stream.length + " samples, window " + windowLength + ", " + shapelets.size()
+					+ " shapelets, " + numWindows + " windows");
+			System.out.println("max error against the kernel: " + maxError);
+			System.out.println("one at a time: " + (singleTime / stream.length) + " ns per sample (incl. checks)");
+			System.out.println("batches of " + batchSize + ": " + (batchTime / stream.length) + " ns per sample");
+			if(maxError > 1e-6) {
+				System.out.println("FAILED: the streaming features do not match the kernel");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+}
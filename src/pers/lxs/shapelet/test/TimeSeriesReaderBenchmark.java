@@ -0,0 +1,75 @@
+package pers.lxs.shapelet.test;
+
+import java.io.File;
+
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.TimeSeriesDataset;
+import pers.lxs.shapelet.datasetconverter.TimeSeriesReader;
+import weka.core.Instances;
+
+/**
+ * Compares loading a data set with Weka against the byte level TimeSeriesReader, serial and
+ * chunked, and checks that all three give the same values.
+ */
+public class TimeSeriesReaderBenchmark {
+
+	public static void main(String[] args) {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/EEG_Eye_State.arff";
+		int classIndex = args.length > 1 ? Integer.parseInt(args[1]) : 14;
+		int numThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int repeats = 10;
+
+		try {
+			TimeSeriesDataset expected = null;
+			TimeSeriesDataset serial = null;
+			TimeSeriesDataset chunked = null;
+			long wekaTime = Long.MAX_VALUE;
+			long serialTime = Long.MAX_VALUE;
+			long chunkedTime = Long.MAX_VALUE;
+			for(int r = 0; r < repeats; r++) {
+				long start = System.nanoTime();
+				Instances data = ShapeletUtils.loadData(ARFFName);
+				data.setClassIndex(classIndex);
+				expected = new TimeSeriesDataset(data);
+				wekaTime = Math.min(wekaTime, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				serial = TimeSeriesReader.read(new File(ARFFName), classIndex);
+				serialTime = Math.min(serialTime, System.nanoTime() - start);
+
+				start = System.nanoTime();
+				chunked = TimeSeriesReader.read(new File(ARFFName), classIndex, numThreads);
+				chunkedTime = Math.min(chunkedTime, System.nanoTime() - start);
+			}
+
+			System.out.println(ARFFName + ": " + expected.numSeries() + " series of length " + expected.seriesLength());
+			System.out.println("Weka:                  " + wekaTime / 1000000 + " ms");
+			System.out.println("reader:                " + serialTime / 1000000 + " ms, same values: " + same(expected, serial));
+			System.out.println("reader, " + numThreads + " chunks: " + chunkedTime / 1000000 + " ms, same values: "
+					+ same(expected, chunked));
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static boolean same(TimeSeriesDataset expected, TimeSeriesDataset actual) {
+		if(expected.numSeries() != actual.numSeries() || expected.seriesLength() != actual.seriesLength()) {
+			return false;
+		}
+		for(int i = 0; i < expected.numSeries(); i++) {
+			if(Double.compare(expected.getClassValue(i), actual.getClassValue(i)) != 0) {
+				return false;
+			}
+		}
+		double[] a = expected.getValues();
+		double[] b = actual.getValues();
+		for(int i = 0; i < a.length; i++) {
+			if(Double.compare(a[i], b[i]) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,70 @@
+package pers.lxs.shapelet.test;
+
+import java.util.ArrayList;
+
+import pers.lxs.shapelet.Shapelet;
+import pers.lxs.shapelet.ShapeletUtils;
+import pers.lxs.shapelet.shapeletfilter.ShapeletFilter;
+import weka.core.Instances;
+
+/**
+ * Checks that the shapelet transform of the training data reuses the distances from discovery, and
+ * that it computes them again once a series of the data has been changed.
+ */
+public class TransformReuseTest {
+
+	public static void main(String[] args) throws Exception {
+		String ARFFName = args.length > 0 ? args[0] : "dataset/Coffee_TRAIN.arff";
+		Instances data = ShapeletUtils.loadData(ARFFName);
+		data.setClassIndex(0);
+
+		ShapeletFilter sf = new ShapeletFilter(10, 20, 23);
+		sf.turnOffLog();
+		ArrayList<Shapelet> shapelets = sf.process(data);
+
+		long start = System.nanoTime();
+		double[][] reused = ShapeletUtils.transform(shapelets, data, 1);
+		long reuseTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		double[][] computed = transformWithoutReuse(shapelets, data);
+		long computeTime = System.nanoTime() - start;
+		double reuseError = maxDifference(reused, computed);
+		System.out.println("Training data: max absolute error " + reuseError + ", reused in "
+				+ reuseTime / 1000 + " us, computed in " + computeTime / 1000 + " us");
+
+		// change series 0 in place, its distances from discovery no longer hold
+		for(int a = 0; a < data.numAttributes(); a++) {
+			if(a != data.classIndex()) {
+				data.instance(0).setValue(a, data.instance(0).value(a) * 2 + Math.sin(a));
+			}
+		}
+		double[][] changed = ShapeletUtils.transform(shapelets, data, 1);
+		double changedError = maxDifference(changed, transformWithoutReuse(shapelets, data));
+		System.out.println("Changed data: max absolute error " + changedError + ", series 0 distance to shapelet 0 "
+				+ reused[0][0] + " before, " + changed[0][0] + " after");
+
+		if(reuseError > 1e-9 || changedError > 1e-9 || changed[0][0] == reused[0][0]) {
+			System.out.println("FAILED: the transform does not match the distances computed from scratch");
+		}
+	}
+
+	// the same shapelets without the distances from discovery
+	private static double[][] transformWithoutReuse(ArrayList<Shapelet> shapelets, Instances data) {
+		ArrayList<Shapelet> copies = new ArrayList<Shapelet>();
+		for(Shapelet shapelet : shapelets) {
+			copies.add(new Shapelet(shapelet.content, shapelet.seriesId, shapelet.startPos));
+		}
+		return ShapeletUtils.transform(copies, data, 1);
+	}
+
+	private static double maxDifference(double[][] a, double[][] b) {
+		double max = 0;
+		for(int i = 0; i < a.length; i++) {
+			for(int j = 0; j < a[i].length; j++) {
+				max = Math.max(max, Math.abs(a[i][j] - b[i][j]));
+			}
+		}
+		return max;
+	}
+
+}